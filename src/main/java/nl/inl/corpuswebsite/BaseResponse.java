@@ -6,11 +6,16 @@
  */
 package nl.inl.corpuswebsite;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
 import jakarta.servlet.ServletException;
@@ -23,6 +28,8 @@ import org.apache.velocity.VelocityContext;
 import org.apache.velocity.app.event.EventCartridge;
 import org.apache.velocity.app.event.ReferenceInsertionEventHandler;
 import org.apache.velocity.context.Context;
+import org.apache.velocity.context.InternalContextAdapter;
+import org.apache.velocity.runtime.Renderable;
 import org.apache.velocity.tools.generic.DateTool;
 import org.apache.velocity.tools.generic.EscapeTool;
 
@@ -51,6 +58,9 @@ public abstract class BaseResponse {
 
     protected String name = "";
 
+    /** The writer the template is rendered to, see {@link StreamedValue}. */
+    private Writer templateWriter;
+
     /** Does this response require a corpus to be set? */
     private final boolean requiresCorpus;
 
@@ -170,6 +180,7 @@ public abstract class BaseResponse {
                 @Override
                 public Object referenceInsert(Context context, String expression, Object value) {
                     boolean escape = !expression.toLowerCase().contains("unescaped");
+                    if (!escape && value instanceof StreamedValue) return value; // velocity renders it in place.
                     String val = value != null ? value.toString() : "";
                     return escape ? esc.html(val) : val;
                 }
@@ -191,6 +202,7 @@ public abstract class BaseResponse {
 
         // Merge context into the page template and write to output stream
         try (OutputStreamWriter osw = new OutputStreamWriter(response.getOutputStream(), OUTPUT_ENCODING)) {
+            templateWriter = osw;
             template.merge(model, osw);
             osw.flush();
         } catch (Exception e) {
@@ -198,6 +210,49 @@ public abstract class BaseResponse {
         }
     }
 
+    /**
+     * <pre>
+     * A value for the template model that is written to the response while the template is rendered, instead of being turned into a String first,
+     * e.g. a large transformed document. The part of the page before it is sent to the client first.
+     * Must be inserted through an "unescaped" reference (see {@link #init(HttpServletRequest, HttpServletResponse, MainServlet, Optional, List)}), and is only written once.
+     * </pre>
+     */
+    protected class StreamedValue implements Renderable {
+        private final Consumer<OutputStream> writer;
+        private boolean written = false;
+
+        /** @param writer writes the value to the stream (as UTF-8), should not close it. */
+        public StreamedValue(Consumer<OutputStream> writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public boolean render(InternalContextAdapter context, Writer out) throws IOException {
+            if (written) return true;
+            written = true;
+            if (out == templateWriter) {
+                // The template writer writes to the response, so everything before this value has to go out first.
+                out.flush();
+                writer.accept(response.getOutputStream());
+            } else {
+                // Rendered into something else (e.g. a #define block), so it can't be written to the response directly.
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                writer.accept(buffer);
+                out.write(buffer.toString(StandardCharsets.UTF_8));
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            if (written) return "";
+            written = true;
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            writer.accept(buffer);
+            return buffer.toString(StandardCharsets.UTF_8);
+        }
+    }
+
     /**
      * Display a template with the HTML mime type
      *
@@ -14,8 +14,11 @@ import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.*;
 import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -43,17 +46,27 @@ import nl.inl.corpuswebsite.response.CorporaDataResponse;
 import nl.inl.corpuswebsite.response.CorporaResponse;
 import nl.inl.corpuswebsite.response.ErrorResponse;
 import nl.inl.corpuswebsite.response.HelpResponse;
+import nl.inl.corpuswebsite.response.MetricsResponse;
 import nl.inl.corpuswebsite.response.OidcCallbackResponse;
+import nl.inl.corpuswebsite.response.ReadyResponse;
 import nl.inl.corpuswebsite.response.RemoteIndexResponse;
 import nl.inl.corpuswebsite.response.SearchResponse;
+import nl.inl.corpuswebsite.utils.ArticleCache;
+import nl.inl.corpuswebsite.utils.ArticleUtil;
 import nl.inl.corpuswebsite.utils.BlackLabApi;
+import nl.inl.corpuswebsite.utils.BlackLabHttpClient;
+import nl.inl.corpuswebsite.utils.Cache;
+import nl.inl.corpuswebsite.utils.CacheBackends;
 import nl.inl.corpuswebsite.utils.CorpusConfig;
+import nl.inl.corpuswebsite.utils.CorpusFileIndex;
 import nl.inl.corpuswebsite.utils.CorpusFileUtil;
+import nl.inl.corpuswebsite.utils.CorpusVersionPoller;
 import nl.inl.corpuswebsite.utils.GlobalConfig;
 import nl.inl.corpuswebsite.utils.GlobalConfig.Keys;
 import nl.inl.corpuswebsite.utils.QueryException;
 import nl.inl.corpuswebsite.utils.Result;
 import nl.inl.corpuswebsite.utils.ReturnToClientException;
+import nl.inl.corpuswebsite.utils.WarmUp;
 import nl.inl.corpuswebsite.utils.WebsiteConfig;
 import nl.inl.corpuswebsite.utils.XslTransformer;
 import org.apache.velocity.tools.config.EasyFactoryConfiguration;
@@ -76,17 +89,30 @@ public class MainServlet extends HttpServlet {
     /**
      * Per-corpus configuration parameters (from search.xml)
      */
-    private static final Map<String, WebsiteConfig> configs = new HashMap<>();
+    private Cache<Optional<String>, WebsiteConfig> configs;
 
     /**
      * Our Velocity templates
      */
-    private static final Map<String, Template> templates = new HashMap<>();
+    private Cache<String, Template> templates;
 
     /**
      * Xslt transformers for corpora
      */
-    private static final Map<String, Result<XslTransformer, SaxonApiException>> articleTransformers = new HashMap<>();
+    private Cache<String, Result<XslTransformer, SaxonApiException>> articleTransformers;
+
+    /**
+     * Transformed documents and metadata, null when disabled.
+     */
+    private ArticleCache articleCache;
+
+    /** Notices when corpora are indexed again, so we can remove them from the caches. */
+    private CorpusVersionPoller corpusVersions;
+
+    /**
+     * Fills the caches on startup, determines readiness.
+     */
+    private WarmUp warmUp;
 
     /**
      * The response classes for our URI patterns
@@ -104,7 +130,23 @@ public class MainServlet extends HttpServlet {
             this.config = GlobalConfig.getInstance();
             startVelocity(ctx);
 
-            XslTransformer.setUseCache(this.useCache(null));
+            int maxEntries = Integer.parseInt(config.get(Keys.CACHE_MAX_ENTRIES));
+            Duration ttl = BlackLabHttpClient.parseMillis(config.get(Keys.CACHE_TTL), Duration.ZERO);
+            configs = new Cache<>("frontend.cache.searchxml", maxEntries, ttl);
+            templates = new Cache<>("frontend.cache.templates", maxEntries, null); // these are in our own war, they don't change.
+            articleTransformers = new Cache<>("frontend.cache.xslt", maxEntries, ttl);
+            XslTransformer.setUseCache(this.useCache(null), maxEntries, ttl);
+            XslTransformer.setTimeout(BlackLabHttpClient.parseMillis(config.get(Keys.XSLT_TIMEOUT), Duration.ofSeconds(60)));
+            XslTransformer.setWorkers(
+                    Math.max(1, BlackLabHttpClient.parseInt(config.get(Keys.XSLT_WORKERS), 32)),
+                    Math.max(0, BlackLabHttpClient.parseInt(config.get(Keys.XSLT_QUEUE), 64)));
+            long articleCacheSize = Long.parseLong(config.get(Keys.CACHE_ARTICLES_MAX_SIZE));
+            if (this.useCache(null) && articleCacheSize > 0)
+                articleCache = new ArticleCache(
+                        articleCacheSize,
+                        BlackLabHttpClient.parseMillis(config.get(Keys.CACHE_ARTICLES_TTL), Duration.ofMinutes(5)),
+                        CacheBackends.getInstance(),
+                        BlackLabHttpClient.parseMillis(config.get(Keys.CACHE_DISK_TTL), Duration.ofDays(1)));
 
             // Map responses, the majority of these can be served for a specific corpus, or as a general autosearch page
             // E.G. the AboutResponse is mapped to /<root>/<corpus>/about and /<root>/about
@@ -119,6 +161,20 @@ public class MainServlet extends HttpServlet {
             responses.put("configwizard", ConfigWizardResponse.class);
             responses.put("api", ApiResponse.class);
             responses.put("callback", OidcCallbackResponse.class);
+            responses.put("metrics", MetricsResponse.class);
+            responses.put("ready", ReadyResponse.class);
+
+            if (this.useCache(null))
+                CorpusFileUtil.getIndex(config.get(Keys.CORPUS_CONFIG_DIR)).ifPresent(__ -> CorpusFileIndex.addListener(this::onCorpusFileChanged));
+
+            corpusVersions = new CorpusVersionPoller(config);
+            if (this.useCache(null)) {
+                corpusVersions.addListener(this::onCorpusChanged);
+                corpusVersions.start();
+            }
+
+            warmUp = new WarmUp(this, config);
+            warmUp.start();
         } catch (ServletException e) {
             throw e;
         } catch (Exception e) {
@@ -126,6 +182,15 @@ public class MainServlet extends HttpServlet {
         }
     }
 
+    @Override
+    public void destroy() {
+        if (corpusVersions != null) corpusVersions.stop();
+        BlackLabHttpClient.shutdown();
+        CacheBackends.shutdown();
+        CorpusFileIndex.shutdown();
+        super.destroy();
+    }
+
     /**
      * Start the templating engine. Loading settings from {@link #VELOCITY_PROPERTIES}
      *
@@ -167,18 +232,12 @@ public class MainServlet extends HttpServlet {
      * @param templateName name of the template, excluding filename (.vm) suffix
      * @return velocity template
      */
-    public synchronized Template getTemplate(String templateName) {
+    public Template getTemplate(String templateName) {
         templateName = templateName + ".vm";
 
         if (Velocity.resourceExists(templateName)) {
-            if (templates.containsKey(templateName)) {
-                return templates.get(templateName);
-            }
-
             try {
-                Template t = Velocity.getTemplate(templateName, "utf-8");
-                templates.put(templateName, t);
-                return t;
+                return templates.get(templateName, name -> Velocity.getTemplate(name, "utf-8"));
             } catch (Exception e) {
                 throw new RuntimeException(e);
             }
@@ -199,38 +258,86 @@ public class MainServlet extends HttpServlet {
      * @param corpus which corpus to read config for, may be null for the default config.
      * @return the website config
      */
-    public synchronized WebsiteConfig getWebsiteConfig(Optional<String> corpus) {
-        Function<String, WebsiteConfig> gen = __ ->
-            getProjectFile(corpus, "search.xml")
+    public WebsiteConfig getWebsiteConfig(Optional<String> corpus) {
+        return useCache(null) ? configs.get(corpus, this::loadWebsiteConfig) : loadWebsiteConfig(corpus);
+    }
+
+    private WebsiteConfig loadWebsiteConfig(Optional<String> corpus) {
+        return getProjectFile(corpus, "search.xml")
             .map(configFile -> {
                 try { return new WebsiteConfig(configFile, config.get(Keys.CF_URL_ON_CLIENT), corpus); }
                 catch (ConfigurationException e) { throw new RuntimeException("Could not read search.xml " + configFile, e); }
             })
             .orElseThrow(() -> new IllegalStateException("No search.xml, and no default in jar either"));
+    }
 
-        return useCache(null) ? configs.computeIfAbsent(corpus.orElse(null), gen) : gen.apply(corpus.orElse(null));
+    /** Remove everything we know about the corpus from the caches, as it was indexed again in BlackLab. */
+    private void onCorpusChanged(String corpus) {
+        BlackLabApi.invalidateCorpus(corpus);
+        // The data format may have changed, so the corpus may need another stylesheet.
+        articleTransformers.invalidateIf(stylesheetKeysOf(corpus));
+        getArticleCache().ifPresent(c -> c.invalidateIf(ArticleUtil.cacheKeysOf(corpus)));
     }
 
-    // TODO use network-level caching or something, so we automatically handle lifetime, authentication, etc.
-    private static final Map<String, Result<CorpusConfig, Exception>> configCache = new HashMap<>();
     /**
-     * Get the corpus config (as returned from blacklab-server), if this is a valid corpus
+     * <pre>
+     * Update the caches when a file in the corpus interface directory changes (see {@link CorpusFileIndex}),
+     * so changes to a corpus' search.xml and stylesheets are picked up without disabling the cache or restarting.
+     * Runs on the index' own thread, so requests keep using the previous version until the new one is ready.
+     *
+     * Changes in the directory of the default corpus config, or of the whole directory, can affect every corpus.
+     * Other changes only affect the corpus whose directory they're in.
+     * The .inc files are read on every request, they don't need anything here.
+     * </pre>
+     * @param root the corpus interface directory
+     * @param changed the changed file or directory, the root when everything may have changed.
+     * @param isDirectory whether the changed path is (or was, when it was deleted) a directory.
+     */
+    private void onCorpusFileChanged(Path root, Path changed, boolean isDirectory) {
+        // Files directly in the root don't belong to any corpus, and aren't used.
+        if (!isDirectory && root.equals(changed.getParent())) return;
+
+        String fileName = changed.equals(root) ? "" : changed.getFileName().toString();
+        Optional<String> corpus = changed.equals(root) ? Optional.empty() : Optional.of(root.relativize(changed).getName(0).toString());
+        Optional<String> defaultCorpus = Optional.ofNullable(config.get(Keys.DEFAULT_CORPUS_CONFIG));
+        boolean allCorpora = corpus.isEmpty() || corpus.equals(defaultCorpus);
+
+        if (isDirectory || fileName.equals("search.xml")) {
+            for (Optional<String> key : configs.keys()) {
+                if (!allCorpora && !key.equals(corpus)) continue;
+                try {
+                    configs.put(key, loadWebsiteConfig(key));
+                    logger.info("Reloaded search.xml for " + key.orElse("the default config"));
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "search.xml for " + key.orElse("the default config") + " changed but can't be read, keeping the previous version", e);
+                }
+            }
+        }
+
+        if (isDirectory || fileName.endsWith(".xsl") || fileName.endsWith(".xslt")) {
+            // Stylesheets can import each other, so compile the ones from the corpus' directory and the default config's directory again.
+            // Then let the corpora find their stylesheet again (the changed file may replace a fallback), which now hits the freshly compiled versions.
+            Path corpusDir = corpus.map(root::resolve).orElse(root);
+            Optional<Path> defaultDir = defaultCorpus.map(root::resolve);
+            XslTransformer.recompile(path -> path.startsWith(corpusDir) || defaultDir.map(path::startsWith).orElse(false));
+            if (allCorpora) articleTransformers.clear();
+            else articleTransformers.invalidateIf(stylesheetKeysOf(corpus.get()));
+        }
+    }
+
+    /**
+     * Get the corpus config (as returned from blacklab-server), if this is a valid corpus.
+     * The config is cached and revalidated by {@link BlackLabApi}.
      *
      * @param corpus name of the corpus
      * @return the config
      */
     public Result<CorpusConfig, Exception> getCorpusConfig(Optional<String> corpus, HttpServletRequest request, HttpServletResponse response) {
-        // Should only cache when not using authorization, otherwise result may be different across different requests.
-        // Also disable caching for user-corpora, as access permissions may change.
-
         // Contact blacklab-server for the config xml file if we have a corpus
-        Function<String, Result<CorpusConfig, Exception>> gen = c -> new BlackLabApi(request, response, this.config).getCorpusConfig(c);
-        synchronized (configCache) {
-            return Result
-                    .from(corpus)
-                    .flatMap(c -> useCache(request) ? configCache.computeIfAbsent(c, gen) : gen.apply(c))
-                    .orError(() -> new FileNotFoundException("No corpus specified"));
-        }
+        return Result
+                .from(corpus)
+                .flatMap(c -> new BlackLabApi(request, response, this.config).getCorpusConfig(c))
+                .orError(() -> new FileNotFoundException("No corpus specified"));
     }
 
     @Override
@@ -318,6 +425,7 @@ public class MainServlet extends HttpServlet {
                     response.getWriter().write(e.getMessage());
                 }
             } catch (ReturnToClientException e) {
+                e.getHeaders().forEach((k, v) -> v.forEach(w -> response.addHeader(k, w)));
                 if (e.getCode() != HttpServletResponse.SC_OK)
                     response.sendError(e.getCode(), e.getMessage());
                 else if (e.getMessage() != null)
@@ -335,7 +443,7 @@ public class MainServlet extends HttpServlet {
      * </pre>
      * @param corpus - corpus to get the stylesheet for
      * @param name - the name of the stylesheet, excluding extension (currently supported "article" and "meta")
-     * @return the xsl transformer to use for transformation, note that this is always the same transformer.
+     * @return the xsl transformer to use for transformation, a fresh copy (without parameters) of the cached transformer, so it can be used concurrently.
      */
     public Result<XslTransformer, SaxonApiException> getStylesheet(CorpusConfig corpus, String name, HttpServletRequest request, HttpServletResponse response) {
         Optional<String> corpusDataFormat = corpus.getCorpusDataFormat();
@@ -343,8 +451,16 @@ public class MainServlet extends HttpServlet {
 
         // need to use corpus name in the cache map
         // because corpora can define their own xsl files in their own data directory
-        String key = corpus.getCorpusId() + "_" + corpusDataFormat.orElse("missing-format") + "_" + name;
-        return this.useCache(request) ? articleTransformers.computeIfAbsent(key, gen) : gen.apply(key);
+        // The stylesheets are the same for every user that can access the corpus (getting the corpus config already checked that), so authenticated requests share them too.
+        // Corpus ids can't contain a '/' (they're part of BlackLab's urls), so the first part of the key is always the entire id, see stylesheetKeysOf.
+        String key = corpus.getCorpusId() + "/" + corpusDataFormat.orElse("missing-format") + "/" + name;
+        return (this.useCache(null) ? articleTransformers.get(key, gen::apply) : gen.apply(key)).map(XslTransformer::copy);
+    }
+
+    /** Matches the {@link #articleTransformers} keys of exactly this corpus (not of e.g. corpus_other), see {@link #getStylesheet(CorpusConfig, String, HttpServletRequest, HttpServletResponse)}. */
+    private static Predicate<String> stylesheetKeysOf(String corpus) {
+        String prefix = corpus + "/";
+        return key -> key.startsWith(prefix);
     }
 
     public Optional<File> getProjectFile(Optional<String> corpus, String file) {
@@ -378,6 +494,19 @@ public class MainServlet extends HttpServlet {
         return Boolean.parseBoolean(this.config.get(Keys.CACHE)) && auth.isEmpty();
     }
 
+    /** The cache for transformed documents and metadata, empty if it's disabled. */
+    public Optional<ArticleCache> getArticleCache() {
+        return Optional.ofNullable(articleCache);
+    }
+
+    public CorpusVersionPoller getCorpusVersions() {
+        return corpusVersions;
+    }
+
+    public WarmUp getWarmUp() {
+        return warmUp;
+    }
+
     /** Render debug info checkbox in the search interface? */
     public boolean debugInfo() {
         return Boolean.parseBoolean(this.config.get(Keys.SHOW_DEBUG_CHECKBOX_ON_CLIENT));
@@ -2,21 +2,33 @@ package nl.inl.corpuswebsite.response;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
 
 import jakarta.servlet.http.HttpServletResponse;
 
+import com.google.gson.stream.JsonWriter;
+
 import nl.inl.corpuswebsite.BaseResponse;
 import nl.inl.corpuswebsite.utils.ArticleUtil;
+import nl.inl.corpuswebsite.utils.BlackLabApi;
 import nl.inl.corpuswebsite.utils.CorpusConfig;
+import nl.inl.corpuswebsite.utils.GlobalConfig;
+import nl.inl.corpuswebsite.utils.GlobalConfig.Keys;
 import nl.inl.corpuswebsite.utils.QueryException;
 import nl.inl.corpuswebsite.utils.Result;
 import nl.inl.corpuswebsite.utils.ReturnToClientException;
 import nl.inl.corpuswebsite.utils.StaticFileHandler;
+import nl.inl.corpuswebsite.utils.WebsiteConfig;
 
 /**
  * We need a rudimentary API for some of the content that needs to processed serverside.
- * At the moment that's these 3 items:
+ * At the moment that's these 4 items:
  * - document metadata      /${corpus}/api/docs/${id}           - show the metadata for the document, transformed with the 'meta.xsl' stylesheet for the corpus.
+ * - batch metadata         /${corpus}/api/docs?id=a&id=b       - same, for many documents at once. Returns a json object of id: result, written as the documents complete.
  * - document contents      /${corpus}/api/docs/${id}/contents  - show the document's content, transformed with the appropriate 'article.xsl' stylesheet for the corpus.
  * - index metadata         /${corpus}/api/info                 - Return a json of the indexmetadata from BlackLab, but with annotation values listed.
  * <br>
@@ -37,7 +49,11 @@ public class ApiResponse extends BaseResponse {
         if (pathParameters.isEmpty()) throw new QueryException(HttpServletResponse.SC_NOT_FOUND, "No endpoint specified");
         String operation = pathParameters.get(0);
         if (operation.equalsIgnoreCase("docs")) {
-            if (pathParameters.size() < 2) throw new QueryException(HttpServletResponse.SC_NOT_FOUND, "No document specified. Expected ${corpus}/docs/${docid}[/contents]");
+            if (pathParameters.size() < 2) {
+                if (request.getParameterValues("id") == null) throw new QueryException(HttpServletResponse.SC_NOT_FOUND, "No document specified. Expected ${corpus}/docs/${docid}[/contents] or ${corpus}/docs?id=${docid}&id=${docid}...");
+                documentMetadataBatch(request.getParameterValues("id"));
+                return;
+            }
             String document = pathParameters.get(1);
             boolean isContents = pathParameters.size() > 2 && pathParameters.get(2).equalsIgnoreCase("contents");
             if (isContents) documentContents(document);
@@ -48,35 +64,106 @@ public class ApiResponse extends BaseResponse {
     }
 
     public void documentContents(String docId) throws QueryException {
-        new ArticleUtil(servlet, request, response).getTransformedDocument(
-            servlet.getWebsiteConfig(corpus),
-            servlet.getCorpusConfig(corpus, request, response).mapError(QueryException::wrap).getOrThrow(),
-            servlet.getGlobalConfig(),
-            docId,
-            Result.empty()
-        )
-        .tapSelf(r -> sendResult(r, "text/html; charset=utf-8"));
+        WebsiteConfig websiteConfig = servlet.getWebsiteConfig(corpus);
+        CorpusConfig corpusConfig = servlet.getCorpusConfig(corpus, request, response).mapError(QueryException::wrap).getOrThrow();
+        ArticleUtil articles = new ArticleUtil(servlet, request, response);
+        Optional<String> etag = articles.getETag("contents", websiteConfig, corpusConfig, docId, List.of(), "article");
+        if (etag.isPresent() && StaticFileHandler.checkNotModified(request, response, etag.get())) return;
+        // Only send the ETag with a document from the cache, those are known to be complete.
+        // A transformation can still fail after the headers were sent, the client must not keep reusing that output.
+        Optional<byte[]> cached = articles.getCachedDocument(websiteConfig, corpusConfig, docId);
+        if (cached.isPresent()) etag.ifPresent(e -> StaticFileHandler.setETag(response, e, servlet.useCache(request)));
+        try {
+            // The transformed document is written to the client while it is being produced, so set the headers first.
+            response.setHeader("Content-Type", "text/html; charset=utf-8");
+            response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+            if (cached.isPresent()) {
+                response.getOutputStream().write(cached.get());
+            } else {
+                articles
+                    .getTransformedDocument(websiteConfig, corpusConfig, servlet.getGlobalConfig(), docId, response.getOutputStream())
+                    .tapError(error -> {
+                        // Can only send a status code if we haven't started writing the document yet.
+                        if (!response.isCommitted()) throw new ReturnToClientException(error);
+                        logger.warning("Error while streaming document " + docId + ": " + error.getMessage());
+                    });
+            }
+            response.flushBuffer();
+        } catch (IOException e) {
+            throw new ReturnToClientException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+        }
     }
 
     public void documentMetadata(String docId) throws QueryException {
-        new ArticleUtil(servlet, request, response).getTransformedMetadata(
-            servlet.getCorpusConfig(corpus, request, response).mapError(QueryException::wrap).getOrThrow(),
-            servlet.getWebsiteConfig(corpus),
-            servlet.getGlobalConfig(),
-            docId
-        )
-        .tapSelf(r -> sendResult(r, "text/html; charset=utf-8"));
+        CorpusConfig corpusConfig = servlet.getCorpusConfig(corpus, request, response).mapError(QueryException::wrap).getOrThrow();
+        try {
+            // The transformed metadata is written to the client while it is being produced, so set the headers first.
+            response.setHeader("Content-Type", "text/html; charset=utf-8");
+            response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+            new ArticleUtil(servlet, request, response)
+                .getTransformedMetadata(corpusConfig, servlet.getWebsiteConfig(corpus), servlet.getGlobalConfig(), docId, response.getOutputStream())
+                .tapError(error -> {
+                    // Can only send a status code if we haven't started writing the metadata yet.
+                    if (!response.isCommitted()) throw new ReturnToClientException(error);
+                    logger.warning("Error while streaming metadata of document " + docId + ": " + error.getMessage());
+                });
+            response.flushBuffer();
+        } catch (IOException e) {
+            throw new ReturnToClientException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+    }
+
+    /**
+     * Transformed metadata for many documents, as a json object. Documents are written as soon as they complete, so the order is arbitrary:
+     * <pre>
+     * {
+     *   "docid": { "status": 200, "metadata": "&lt;transformed metadata&gt;" },
+     *   "other": { "status": 404, "error": "message" }
+     * }
+     * </pre>
+     */
+    public void documentMetadataBatch(String[] ids) throws QueryException {
+        Set<String> docIds = new LinkedHashSet<>(Arrays.asList(ids));
+        docIds.removeIf(String::isBlank);
+        GlobalConfig config = servlet.getGlobalConfig();
+        int max = Integer.parseInt(config.get(Keys.API_BATCH_MAX_DOCUMENTS));
+        if (docIds.size() > max) throw new QueryException(HttpServletResponse.SC_BAD_REQUEST, "Too many documents requested, at most " + max + " per request.");
+
+        WebsiteConfig websiteConfig = servlet.getWebsiteConfig(corpus);
+        CorpusConfig corpusConfig = servlet.getCorpusConfig(corpus, request, response).mapError(QueryException::wrap).getOrThrow();
+        int parallelism = Math.max(1, Integer.parseInt(config.get(Keys.API_BATCH_PARALLELISM)));
+        try {
+            response.setHeader("Content-Type", "application/json; charset=utf-8");
+            response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+            JsonWriter out = new JsonWriter(response.getWriter());
+            out.beginObject();
+            new ArticleUtil(servlet, request, response).getTransformedMetadata(corpusConfig, websiteConfig, config, docIds, parallelism, (docId, result) -> {
+                try {
+                    out.name(docId).beginObject();
+                    out.name("status").value(result.getError().map(QueryException::getHttpStatusCode).orElse(HttpServletResponse.SC_OK));
+                    if (result.hasError()) out.name("error").value(result.getError().get().getMessage());
+                    else out.name("metadata").value(result.getResult().orElse(""));
+                    out.endObject();
+                    out.flush();
+                } catch (IOException e) {
+                    throw new ReturnToClientException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+                }
+            });
+            out.endObject();
+            out.flush();
+            response.flushBuffer();
+        } catch (IOException e) {
+            throw new ReturnToClientException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+        }
     }
 
     public void indexMetadata() {
-        // Use public caching only for unauthenticated requests
+        // Use public caching only for unauthenticated requests, or when BlackLab says the metadata is the same for everyone
         // This allows localStorage caching on the client for public corpora
-        boolean isPublic = servlet.useCache(request);
-        
         servlet.getCorpusConfig(corpus, request, response)
             .mapError(QueryException::wrap)
-            .map(CorpusConfig::getJsonUnescaped)
-            .tap(json -> serveWithETag(json, "application/json; charset=utf-8", isPublic))
+            .tap(c -> serveWithETag(c.getJsonUnescaped(), "application/json; charset=utf-8",
+                    servlet.useCache(request) || new BlackLabApi(request, response, servlet.getGlobalConfig()).isCorpusConfigPublic(c.getCorpusId())))
             .tapError(e -> { throw new ReturnToClientException(e); });
     }
 
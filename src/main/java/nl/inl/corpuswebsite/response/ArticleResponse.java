@@ -1,6 +1,9 @@
 package nl.inl.corpuswebsite.response;
 
 import java.io.IOException;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
 
 import jakarta.servlet.http.HttpServletResponse;
 
@@ -8,12 +11,16 @@ import org.apache.commons.lang3.StringUtils;
 
 import nl.inl.corpuswebsite.BaseResponse;
 import nl.inl.corpuswebsite.utils.ArticleUtil;
+import nl.inl.corpuswebsite.utils.ArticleUtil.Content;
+import nl.inl.corpuswebsite.utils.ArticleUtil.StreamedArticle;
+import nl.inl.corpuswebsite.utils.BlackLabApi;
 import nl.inl.corpuswebsite.utils.CorpusConfig;
 import nl.inl.corpuswebsite.utils.GlobalConfig;
 import nl.inl.corpuswebsite.utils.PaginationInfo;
 import nl.inl.corpuswebsite.utils.QueryException;
 import nl.inl.corpuswebsite.utils.Result;
 import nl.inl.corpuswebsite.utils.ReturnToClientException;
+import nl.inl.corpuswebsite.utils.StaticFileHandler;
 import nl.inl.corpuswebsite.utils.WebsiteConfig;
 
 public class ArticleResponse extends BaseResponse {
@@ -47,12 +54,22 @@ public class ArticleResponse extends BaseResponse {
         CorpusConfig corpus = servlet.getCorpusConfig(this.corpus, this.request, this.response).mapError(IOException::new).getOrThrow();
         WebsiteConfig corpusConfig = servlet.getWebsiteConfig(this.corpus);
         GlobalConfig config = servlet.getGlobalConfig();
+        ArticleUtil articles = new ArticleUtil(servlet, request, response);
 
-        ArticleUtil articleUtil = new ArticleUtil(servlet, request, response);
-        Result<String, QueryException> metadata = articleUtil.getDocumentMetadata(corpusConfig, config, pid);
-        PaginationInfo pagination = ArticleUtil.getPaginationInfo(corpusConfig, request, metadata);
-        Result<String, QueryException> transformedMetadata = articleUtil.transformMetadata(corpus, corpusConfig, config, metadata);
-        Result<String, Exception> transformedContent = articleUtil.getTransformedDocument(corpusConfig, corpus, config, pid, metadata)
+        // The page also shows the global settings already in the model (banner, urls, version), the corpus' display name is part of the corpus config.
+        Map<String, Object> pageValues = new TreeMap<>();
+        for (String key : model.getKeys()) {
+            Object value = model.get(key);
+            if (value instanceof String || value instanceof Boolean || value instanceof Number) pageValues.put(key, value);
+        }
+        Optional<String> etag = articles.getETag("page", corpusConfig, corpus, pid, pageValues.entrySet(), "article", "meta");
+        if (etag.isPresent() && StaticFileHandler.checkNotModified(request, response, etag.get())) return;
+
+        // metadata and contents are retrieved concurrently, the contents are transformed while the page is written.
+        StreamedArticle article = BlackLabApi.await(articles.getArticleAsync(corpusConfig, corpus, config, pid, true));
+        PaginationInfo pagination = article.pagination;
+        Result<String, QueryException> transformedMetadata = article.transformedMetadata;
+        Result<Content, Exception> content = article.content
             .mapError(QueryException.class, e -> {
                 // This one should get a nice error message
                 if (e.getHttpStatusCode() == 401) return new ArticleContentRestrictedException();
@@ -60,11 +77,23 @@ public class ArticleResponse extends BaseResponse {
                 return e;
             });
 
+        // Errors are shown on the page, only let the client reuse it if it's complete, as errors may be temporary.
+        // Only a cached article is known to be complete: when the contents are transformed while the page is written,
+        // an error may only happen after the headers were sent. Once that article is cached, later requests get the ETag.
+        if (article.cached)
+            etag.ifPresent(e -> StaticFileHandler.setETag(response, e, servlet.useCache(request)));
+
         model.put("article_meta", transformedMetadata.getResult().orElse(""));
         model.put("article_meta_error", transformedMetadata.getError().orElse(null));
-        model.put("article_content_restricted", transformedContent.getError().filter(e -> e instanceof ArticleContentRestrictedException).isPresent());
-        model.put("article_content", transformedContent.getResult().orElse("An error occurred while retrieving the document contents"));
-        model.put("article_content_error", transformedContent.getError().orElse(null));
+        model.put("article_content_restricted", content.getError().filter(e -> e instanceof ArticleContentRestrictedException).isPresent());
+        if (content.hasResult()) {
+            // Written where the template inserts it, a transformation error is shown after it.
+            Content c = content.getResult().get();
+            model.put("article_content", new StreamedValue(out -> c.writeTo(out).tapError(e -> model.put("article_content_error", e))));
+        } else {
+            model.put("article_content", "An error occurred while retrieving the document contents");
+        }
+        model.put("article_content_error", content.getError().orElse(null));
         model.put("docId", pid);
         model.put("docLength", pagination.documentLength);
         model.put("pageSize", pagination.pageSize);
@@ -81,6 +110,10 @@ public class ArticleResponse extends BaseResponse {
             });
         }
 
-        displayHtmlTemplate(servlet.getTemplate("article"));
+        try {
+            displayHtmlTemplate(servlet.getTemplate("article"));
+        } finally {
+            content.tap(Content::close); // in case the template didn't write it.
+        }
     }
 }
@@ -0,0 +1,38 @@
+package nl.inl.corpuswebsite.response;
+
+import java.io.OutputStreamWriter;
+
+import jakarta.servlet.http.HttpServletResponse;
+
+import com.google.gson.GsonBuilder;
+
+import nl.inl.corpuswebsite.BaseResponse;
+import nl.inl.corpuswebsite.utils.GlobalConfig.Keys;
+import nl.inl.corpuswebsite.utils.Metrics;
+import nl.inl.corpuswebsite.utils.ReturnToClientException;
+
+/** Show the runtime statistics (connection pool, caches, etc.) as json. Only available when enabled in the global config. */
+public class MetricsResponse extends BaseResponse {
+
+    public MetricsResponse() {
+        super("metrics", false);
+    }
+
+    @Override
+    protected void completeRequest() {
+        if (!servlet.getGlobalConfig().getBool(Keys.METRICS)) {
+            throw new ReturnToClientException(HttpServletResponse.SC_NOT_FOUND);
+        }
+
+        response.setCharacterEncoding(OUTPUT_ENCODING);
+        response.setContentType("application/json");
+        response.setHeader("Cache-Control", "no-store");
+
+        try (OutputStreamWriter osw = new OutputStreamWriter(response.getOutputStream(), OUTPUT_ENCODING)) {
+            new GsonBuilder().setPrettyPrinting().create().toJson(Metrics.snapshot(), osw);
+            osw.flush();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package nl.inl.corpuswebsite.response;
+
+import java.io.OutputStreamWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import jakarta.servlet.http.HttpServletResponse;
+
+import com.google.gson.Gson;
+
+import nl.inl.corpuswebsite.BaseResponse;
+import nl.inl.corpuswebsite.utils.WarmUp;
+
+/** Readiness check for load balancers/orchestrators: 200 once the caches have been warmed up (see {@link WarmUp}), 503 until then. */
+public class ReadyResponse extends BaseResponse {
+
+    public ReadyResponse() {
+        super("ready", false);
+    }
+
+    @Override
+    protected void completeRequest() {
+        WarmUp warmUp = servlet.getWarmUp();
+
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("ready", warmUp.isReady());
+        status.put("corpora", warmUp.getTotal());
+        status.put("completed", warmUp.getCompleted());
+        status.put("failed", warmUp.getFailed());
+
+        response.setStatus(warmUp.isReady() ? HttpServletResponse.SC_OK : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setCharacterEncoding(OUTPUT_ENCODING);
+        response.setContentType("application/json");
+        response.setHeader("Cache-Control", "no-store");
+
+        try (OutputStreamWriter osw = new OutputStreamWriter(response.getOutputStream(), OUTPUT_ENCODING)) {
+            new Gson().toJson(status, osw);
+            osw.flush();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+import nl.inl.corpuswebsite.utils.ArticleUtil.Article;
+
+/**
+ * <pre>
+ * Cache for transformed documents and metadata, so repeated views of the same page don't need BlackLab or Saxon.
+ *
+ * The key must identify everything the output depends on: corpus, document, page, query, user and the stylesheets (see {@link ArticleUtil}).
+ * Entries are weighed by their size, the least recently used ones are removed when the cache is full.
+ * Entries expire after a while, as the document may change in BlackLab.
+ * Hit rates are reported per corpus.
+ *
+ * When there is a {@link CacheBackend}, entries that are the same for all users are also written there,
+ * and read from there when they're not in memory (e.g. after a restart, or when another server created them).
+ * </pre>
+ */
+public class ArticleCache {
+    private static final String DISK_PREFIX = "article:";
+    private static final byte TYPE_BYTES = 0, TYPE_STRING = 1, TYPE_ARTICLE = 2;
+
+    private final Cache<String, Object> entries;
+    private final long maxEntryBytes;
+    private final Optional<CacheBackend> disk;
+    private final Duration diskTtl;
+    /** hits in memory, hits on disk, misses */
+    private final Map<String, LongAdder[]> corpusStats = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxBytes approximate maximum memory used by the entries.
+     * @param ttl how long entries are kept.
+     * @param disk the persistent tier, if there is one.
+     * @param diskTtl how long entries are kept on disk.
+     */
+    public ArticleCache(long maxBytes, Duration ttl, Optional<CacheBackend> disk, Duration diskTtl) {
+        this.entries = new Cache<>("frontend.cache.articles", maxBytes, ttl, ArticleCache::weigh);
+        this.maxEntryBytes = maxBytes / 16;
+        this.disk = disk;
+        this.diskTtl = diskTtl;
+        Metrics.register("frontend.cache.articles.corpora", this::getMetrics);
+    }
+
+    /** @return the cached value, if there is one of the requested type. */
+    public <T> Optional<T> get(Class<T> type, String corpus, String key) {
+        LongAdder[] stats = corpusStats.computeIfAbsent(corpus, __ -> new LongAdder[] { new LongAdder(), new LongAdder(), new LongAdder() });
+        Optional<T> value = entries.getIfPresent(key).filter(type::isInstance).map(type::cast);
+        if (value.isPresent()) {
+            stats[0].increment();
+            return value;
+        }
+
+        value = disk.flatMap(d -> d.get(DISK_PREFIX + key)).flatMap(ArticleCache::decode).filter(type::isInstance).map(type::cast);
+        value.ifPresentOrElse(v -> {
+            stats[1].increment();
+            entries.put(key, v);
+        }, stats[2]::increment);
+        return value;
+    }
+
+    /**
+     * @param value an {@link Article}, String or byte[], entries that are too large are not stored.
+     * @param persist whether the value may be written to disk, it should be the same for every user.
+     */
+    public void put(String key, Object value, boolean persist) {
+        if (weigh(value) > maxEntryBytes) return;
+        entries.put(key, value);
+        if (persist) disk.ifPresent(d -> encode(value).ifPresent(bytes -> d.put(DISK_PREFIX + key, bytes, diskTtl)));
+    }
+
+    /**
+     * Remove the matching entries from memory.
+     * Entries on disk can't be removed, so their keys should change instead (see {@link ArticleUtil}).
+     */
+    public void invalidateIf(Predicate<String> keys) {
+        entries.invalidateIf(keys);
+    }
+
+    /**
+     * Wrap the output, so what is written to it is also captured (up to the maximum size of an entry).
+     * Once complete, store it using {@link Capture#store(String, boolean)}.
+     */
+    public <O extends OutputStream> Capture<O> capture(O out) {
+        return new Capture<>(out);
+    }
+
+    public class Capture<O extends OutputStream> extends FilterOutputStream {
+        private final O target;
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        private Capture(O target) {
+            super(target);
+            this.target = target;
+        }
+
+        public O getTarget() {
+            return target;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            if (copy != null) copy.write(b);
+            tooLarge();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if (copy != null) copy.write(b, off, len);
+            tooLarge();
+        }
+
+        private void tooLarge() {
+            if (copy != null && copy.size() > maxEntryBytes) copy = null;
+        }
+
+        /** Store the captured output, unless it was too large. */
+        public void store(String key, boolean persist) {
+            if (copy != null) put(key, copy.toByteArray(), persist);
+        }
+
+        /** The captured output, empty if it was too large. */
+        public Optional<byte[]> getCaptured() {
+            return Optional.ofNullable(copy).map(ByteArrayOutputStream::toByteArray);
+        }
+    }
+
+    private static Optional<byte[]> encode(Object value) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            if (value instanceof byte[]) {
+                out.writeByte(TYPE_BYTES);
+                out.write((byte[]) value);
+            } else if (value instanceof String) {
+                out.writeByte(TYPE_STRING);
+                out.write(((String) value).getBytes(StandardCharsets.UTF_8));
+            } else if (value instanceof Article) {
+                // Only complete articles are cached, so all results are successful.
+                Article a = (Article) value;
+                out.writeByte(TYPE_ARTICLE);
+                PaginationInfo p = a.pagination;
+                out.writeInt(p.pageSize);
+                out.writeInt(p.documentLength);
+                out.writeInt(p.clientPageStart);
+                out.writeInt(p.clientPageEnd);
+                out.writeInt(p.blacklabPageStart.orElse(-1));
+                out.writeInt(p.blacklabPageEnd.orElse(-1));
+                writeString(out, a.metadata.getResult().orElseThrow());
+                out.writeBoolean(a.transformedMetadata != null);
+                if (a.transformedMetadata != null) writeString(out, a.transformedMetadata.getResult().orElseThrow());
+                writeString(out, a.transformedContent.getResult().orElseThrow());
+            } else {
+                return Optional.empty();
+            }
+            out.flush();
+            return Optional.of(bytes.toByteArray());
+        } catch (IOException e) {
+            return Optional.empty(); // can't happen, writing to memory.
+        }
+    }
+
+    private static Optional<Object> decode(byte[] bytes) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            switch (in.readByte()) {
+                case TYPE_BYTES: return Optional.of(in.readAllBytes());
+                case TYPE_STRING: return Optional.of(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+                case TYPE_ARTICLE: {
+                    int pageSize = in.readInt(), documentLength = in.readInt(), clientPageStart = in.readInt(), clientPageEnd = in.readInt();
+                    int blacklabPageStart = in.readInt(), blacklabPageEnd = in.readInt();
+                    PaginationInfo p = new PaginationInfo(pageSize, documentLength, clientPageStart, clientPageEnd,
+                            Optional.of(blacklabPageStart).filter(i -> i >= 0), Optional.of(blacklabPageEnd).filter(i -> i >= 0));
+                    String metadata = readString(in);
+                    String transformedMetadata = in.readBoolean() ? readString(in) : null;
+                    String transformedContent = readString(in);
+                    return Optional.of(new Article(
+                            Result.success(metadata),
+                            p,
+                            transformedMetadata != null ? Result.success(transformedMetadata) : null,
+                            Result.success(transformedContent)));
+                }
+                default: return Optional.empty();
+            }
+        } catch (IOException e) {
+            return Optional.empty();
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return new String(in.readNBytes(in.readInt()), StandardCharsets.UTF_8);
+    }
+
+    private static long weigh(Object value) {
+        if (value instanceof byte[]) return ((byte[]) value).length;
+        if (value instanceof String) return 2L * ((String) value).length();
+        if (value instanceof Article) {
+            Article a = (Article) value;
+            return 1024 // pagination etc.
+                + a.metadata.getResult().map(s -> 2L * s.length()).orElse(0L)
+                + (a.transformedMetadata != null ? a.transformedMetadata.getResult().map(s -> 2L * s.length()).orElse(0L) : 0L)
+                + a.transformedContent.getResult().map(s -> 2L * s.length()).orElse(0L);
+        }
+        return 1024;
+    }
+
+    private Map<String, Object> getMetrics() {
+        Map<String, Object> m = new TreeMap<>();
+        corpusStats.forEach((corpus, stats) -> {
+            long memory = stats[0].sum(), disk = stats[1].sum(), misses = stats[2].sum();
+            long hits = memory + disk;
+            Map<String, Object> c = new LinkedHashMap<>();
+            c.put("hits", hits);
+            c.put("diskHits", disk);
+            c.put("misses", misses);
+            c.put("hitRate", hits + misses == 0 ? 0 : (double) hits / (hits + misses));
+            m.put(corpus, c);
+        });
+        return m;
+    }
+}
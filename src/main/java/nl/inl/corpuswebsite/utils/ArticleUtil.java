@@ -1,24 +1,45 @@
 package nl.inl.corpuswebsite.utils;
 
+import java.io.BufferedInputStream;
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
 import java.util.logging.Logger;
-import java.util.regex.Pattern;
 
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 
 import org.apache.commons.lang3.StringUtils;
 
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+
 import nl.inl.corpuswebsite.MainServlet;
 import nl.inl.corpuswebsite.utils.GlobalConfig.Keys;
-import org.w3c.dom.Document;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
-
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
 
 /**
  * <pre>
@@ -37,57 +58,199 @@ public class ArticleUtil {
 
     private static final Logger logger = Logger.getLogger(ArticleUtil.class.getName());
 
-    /** Matches xml open/void tags &lt;namespace:tagname attribute="value"/&gt; excluding hl tags, as those are inserted by blacklab and can result in false positives */
-    private static final Pattern XML_TAG_PATTERN = Pattern.compile("<([\\w]+:)?((?!(hl|blacklabResponse|[xX][mM][lL])\\b)[\\w.]+)(\\s+[\\w\\.:]+=\"[:/()='+\\-\\w\\s,]*\")*/?>");
+    /** How much of the document contents is inspected to decide whether it is xml. */
+    private static final int XML_SNIFF_LENGTH = 64 * 1024;
+    /** Built-in BlackLab formats (documentFormat in the corpus info) of which the contents are always xml, these aren't inspected. */
+    private static final Set<String> XML_FORMATS = Set.of("tei", "tei-p4-legacy", "tei-p5", "tei-p5-legacy", "folia", "cmdi", "naf", "tcf");
+    /** Built-in BlackLab formats of which the contents are never xml, these aren't inspected either. */
+    private static final Set<String> TEXT_FORMATS = Set.of("txt", "csv", "tsv", "conll-u", "chat");
+    /** The request parameters that determine which part of the document is shown, and how. */
+    private static final List<String> CACHE_KEY_PARAMETERS = List.of("wordstart", "wordend", "findhit", "field", "searchfield", "query", "pattgapdata");
 
     private final MainServlet servlet;
+    /** Only used on the thread handling the client request, e.g. for resolving the stylesheets. */
     private final HttpServletRequest request;
     private final HttpServletResponse response;
+    /** Captured here, most BlackLab requests are made from other threads, which must not use the client request. */
+    private final Deadline deadline;
+    private final BlackLabApi blacklab;
+    /** The values of the {@link #CACHE_KEY_PARAMETERS}, captured for the same reason. */
+    private final Map<String, String> parameters;
 
+    /** Must be called on the thread handling the client request. */
     public ArticleUtil(MainServlet servlet, HttpServletRequest request, HttpServletResponse response) {
         this.servlet = servlet;
         this.request = request;
         this.response = response;
+        this.deadline = Deadline.of(request);
+        this.blacklab = new BlackLabApi(request, response, servlet.getGlobalConfig(), deadline);
+        Map<String, String> parameters = new HashMap<>();
+        for (String name : CACHE_KEY_PARAMETERS) {
+            getParameter(name, request).ifPresent(v -> parameters.put(name, v));
+        }
+        this.parameters = Map.copyOf(parameters);
+    }
+
+    /** Everything required to render an article: the document metadata and the current page of the document, transformed. */
+    public static class Article {
+        public final Result<String, QueryException> metadata;
+        public final PaginationInfo pagination;
+        /** Null if the metadata was not requested to be transformed. */
+        public final Result<String, QueryException> transformedMetadata;
+        public final Result<String, QueryException> transformedContent;
+
+        public Article(Result<String, QueryException> metadata, PaginationInfo pagination, Result<String, QueryException> transformedMetadata, Result<String, QueryException> transformedContent) {
+            this.metadata = metadata;
+            this.pagination = pagination;
+            this.transformedMetadata = transformedMetadata;
+            this.transformedContent = transformedContent;
+        }
+    }
+
+    /** The transformed page of a document, see {@link StreamedArticle}. */
+    public interface Content extends Closeable {
+        /**
+         * Write the transformed page to out (as UTF-8), can only be called once. Out is not closed.
+         * NOTE: when an error occurs during the transformation, part of the output may already have been written.
+         */
+        Result<OutputStream, QueryException> writeTo(OutputStream out);
+
+        /** Release the document contents if they are not going to be written. */
+        @Override
+        default void close() {}
+    }
+
+    /**
+     * Like {@link Article}, but the page of the document is transformed while it is written to the client,
+     * so it doesn't have to be held in memory, and the client can receive the start of the page before the transformation is done.
+     */
+    public static class StreamedArticle {
+        public final Result<String, QueryException> metadata;
+        public final PaginationInfo pagination;
+        /** Null if the metadata was not requested to be transformed. */
+        public final Result<String, QueryException> transformedMetadata;
+        /** Holds errors in retrieving the document (e.g. no access), errors in the transformation are returned by {@link Content#writeTo(OutputStream)}. */
+        public final Result<Content, QueryException> content;
+        /** Whether this is a complete {@link Article} from the cache, so the content is already transformed, and writing it can't fail halfway. */
+        public final boolean cached;
+
+        public StreamedArticle(Result<String, QueryException> metadata, PaginationInfo pagination, Result<String, QueryException> transformedMetadata, Result<Content, QueryException> content, boolean cached) {
+            this.metadata = metadata;
+            this.pagination = pagination;
+            this.transformedMetadata = transformedMetadata;
+            this.content = content;
+            this.cached = cached;
+        }
     }
 
     public Result<String, QueryException> getDocumentMetadata(WebsiteConfig corpus, GlobalConfig config, String docId) {
-        return new BlackLabApi(request, response, config)
+        return blacklab
                 .getDocumentMetadata(corpus.getCorpusId().orElseThrow(), docId)
-                .mapError(e -> {
-                    // when blacklab returns 401, we need to return a 401 to the user (unauthorized - IE you can't do this unless you log in - please log in and try again)
-                    // when blacklab returns 403, we need to also return 403, (forbidden - IE you're logged in, but you're still not allowed.)
-                    if (e.getHttpStatusCode() == HttpServletResponse.SC_UNAUTHORIZED) return new QueryException(HttpServletResponse.SC_UNAUTHORIZED, "Please log in to view this document.");
-                    if (e.getHttpStatusCode() == HttpServletResponse.SC_FORBIDDEN) return new QueryException(HttpServletResponse.SC_FORBIDDEN, "Administrator has restricted access to this document.");
-                    else return new QueryException(e.getHttpStatusCode(), "An error occurred while retrieving document contents from BlackLab: \n" + e.getMessage());
-                });
+                .mapError(ArticleUtil::mapMetadataError);
+    }
+
+    public CompletableFuture<Result<String, QueryException>> getDocumentMetadataAsync(WebsiteConfig corpus, GlobalConfig config, String docId) {
+        return getDocumentMetadataAsync(corpus, config, docId, deadline);
+    }
+
+    private CompletableFuture<Result<String, QueryException>> getDocumentMetadataAsync(WebsiteConfig corpus, GlobalConfig config, String docId, Deadline deadline) {
+        return blacklab.withDeadline(deadline)
+                .getDocumentMetadataAsync(corpus.getCorpusId().orElseThrow(), docId)
+                .thenApply(r -> r.mapError(ArticleUtil::mapMetadataError));
+    }
+
+    /**
+     * Parse the metadata once, the tree is used for pagination, as the metadata parameter of the article stylesheet,
+     * and as the source for the meta stylesheet.
+     */
+    private static Result<XdmNode, QueryException> parseMetadata(Result<String, QueryException> metadata) {
+        return metadata.flatMap(md -> Result.attempt(() -> XslTransformer.parse(md))
+                .mapError(e -> QueryException.wrap(e, "Error parsing document metadata")));
+    }
+
+    private static QueryException mapMetadataError(QueryException e) {
+        // when blacklab returns 401, we need to return a 401 to the user (unauthorized - IE you can't do this unless you log in - please log in and try again)
+        // when blacklab returns 403, we need to also return 403, (forbidden - IE you're logged in, but you're still not allowed.)
+        if (e.getHttpStatusCode() == HttpServletResponse.SC_UNAUTHORIZED) return new QueryException(HttpServletResponse.SC_UNAUTHORIZED, "Please log in to view this document.");
+        if (e.getHttpStatusCode() == HttpServletResponse.SC_FORBIDDEN) return new QueryException(HttpServletResponse.SC_FORBIDDEN, "Administrator has restricted access to this document.");
+        else return new QueryException(e.getHttpStatusCode(), "An error occurred while retrieving document contents from BlackLab: \n" + e.getMessage());
     }
 
-    public Result<String, QueryException> getDocumentContent(WebsiteConfig corpusConfig, GlobalConfig config, String docId, PaginationInfo page) {
+    /**
+     * Request the page of the document contents, the contents are streamed from BlackLab.
+     * The stream MUST be closed.
+     */
+    private CompletableFuture<Result<InputStream, QueryException>> getDocumentContentAsync(WebsiteConfig corpusConfig, GlobalConfig config, String docId, PaginationInfo page) {
         // Search a different field than the one we're displaying content from?
         // (used for parallel corpora, where a query can return hits from a different field than the one that was searched,
         //  e.g. search the contents__en field using query rfield('the' -->nl _, 'nl') to find the Dutch translation of 'the')
-        Optional<String> fieldToShow = getParameter("field", request); // optional - if different from the default field (left up BlackLab)
-        Optional<String> fieldToSearch = getParameter("searchfield", request) ; // optional, if different from default field.
+        Optional<String> fieldToShow = getParameter("field"); // optional - if different from the default field (left up BlackLab)
+        Optional<String> fieldToSearch = getParameter("searchfield"); // optional, if different from default field.
         Optional<String> queryTargetField = fieldToSearch.isPresent() && !fieldToSearch.equals(fieldToShow) ? fieldToShow : Optional.empty();
 
-        return new BlackLabApi(request, response, config)
-            .getDocumentContents(
-                    corpusConfig.getCorpusId().orElseThrow(),
-                    docId,
-                    fieldToShow,
-                    fieldToSearch,
-                    optTargetField(getParameter("query", request), queryTargetField),
-                    getParameter("pattgapdata", request),
-                    page.blacklabPageStart,
-                    page.blacklabPageEnd
-            )
-            .mapError(e -> {
-                // when blacklab returns 401, we need to return a 401 to the user (unauthorized - IE you can't do this unless you log in - please log in and try again)
-                // when blacklab returns 403, we need to also return 403, (forbidden - IE you're logged in, but you're still not allowed.)
-                if (e.getHttpStatusCode() == HttpServletResponse.SC_UNAUTHORIZED) return new QueryException(HttpServletResponse.SC_UNAUTHORIZED, "Please log in to view this document.");
-                if (e.getHttpStatusCode() == HttpServletResponse.SC_FORBIDDEN) return new QueryException(HttpServletResponse.SC_FORBIDDEN, "Documents in this corpus cannot be displayed, because the owner has disabled this feature.");
-                else return new QueryException(e.getHttpStatusCode(), "An error occurred while retrieving document contents from BlackLab: \n" + e.getMessage());
-            });
+        return blacklab
+                .getDocumentContentsStreamAsync(
+                        corpusConfig.getCorpusId().orElseThrow(),
+                        docId,
+                        fieldToShow,
+                        fieldToSearch,
+                        optTargetField(getParameter("query"), queryTargetField),
+                        getParameter("pattgapdata"),
+                        page.blacklabPageStart,
+                        page.blacklabPageEnd)
+                .thenApply(r -> r.mapError(ArticleUtil::mapContentsError));
+    }
+
+    /**
+     * <pre>
+     * Request the page of the document contents once the pagination is known.
+     *
+     * The page we need to request from BlackLab depends on the document length (which is in the metadata),
+     * but not when pagination is disabled, or the client requested an explicit page (wordstart and wordend).
+     * In those cases the contents are requested right away, and only re-requested in the rare case that the page,
+     * once we know the document length, turns out to be different (i.e. when it touches the end of the document).
+     * </pre>
+     */
+    private CompletableFuture<Result<InputStream, QueryException>> getDocumentContentAsync(WebsiteConfig corpusConfig, GlobalConfig config, String docId, CompletableFuture<PaginationInfo> pagination) {
+        boolean explicitPage = getIntParameter("wordstart").isPresent() && getIntParameter("wordend").isPresent();
+        Optional<PaginationInfo> speculativePage = Optional.of(corpusConfig)
+                .filter(c -> c.getPageSize().isEmpty() || explicitPage)
+                .map(c -> getPaginationInfo(c, Result.empty())); // assume the document is infinitely long.
+        Optional<CompletableFuture<Result<InputStream, QueryException>>> speculativeContents = speculativePage.map(p -> getDocumentContentAsync(corpusConfig, config, docId, p));
+
+        pagination.whenComplete((p, e) -> {
+            if (e != null) speculativeContents.ifPresent(ArticleUtil::discard);
+        });
+        return pagination.thenCompose(p -> speculativeContents
+                .filter(__ -> isSamePage(speculativePage.get(), p))
+                .orElseGet(() -> {
+                    speculativeContents.ifPresent(ArticleUtil::discard);
+                    return getDocumentContentAsync(corpusConfig, config, docId, p);
+                }));
+    }
+
+    /** Would BlackLab return the same contents for these pages? */
+    private static boolean isSamePage(PaginationInfo a, PaginationInfo b) {
+        return Objects.equals(a.blacklabPageStart, b.blacklabPageStart) && Objects.equals(a.blacklabPageEnd, b.blacklabPageEnd);
+    }
+
+    /** Close the contents once they arrive, they're not needed after all. */
+    private static void discard(CompletableFuture<Result<InputStream, QueryException>> contents) {
+        contents.thenAccept(r -> r.tap(in -> {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignore, we don't need it anyway.
+            }
+        }));
+    }
+
+    private static QueryException mapContentsError(QueryException e) {
+        // when blacklab returns 401, we need to return a 401 to the user (unauthorized - IE you can't do this unless you log in - please log in and try again)
+        // when blacklab returns 403, we need to also return 403, (forbidden - IE you're logged in, but you're still not allowed.)
+        if (e.getHttpStatusCode() == HttpServletResponse.SC_UNAUTHORIZED) return new QueryException(HttpServletResponse.SC_UNAUTHORIZED, "Please log in to view this document.");
+        if (e.getHttpStatusCode() == HttpServletResponse.SC_FORBIDDEN) return new QueryException(HttpServletResponse.SC_FORBIDDEN, "Documents in this corpus cannot be displayed, because the owner has disabled this feature.");
+        else return new QueryException(e.getHttpStatusCode(), "An error occurred while retrieving document contents from BlackLab: \n" + e.getMessage());
     }
 
     /**
@@ -112,24 +275,22 @@ public class ArticleUtil {
      * These are defined and documented in the builtin search.xml
      * The user can add their own parameters there.
      * Take care to update the search.xml file if you add new parameters here.
+     * The transformation is also limited to the time the client request (or the part of it the transformation belongs to) has left.
      *
      * @param trans
      * @param config
      * @param corpus
-     * @param metadata
+     * @param metadata the parsed metadata, passed as the metadata parameter, or null to not pass it. An &lt;empty/&gt; document if it couldn't be retrieved.
+     * @param deadline see {@link XslTransformer#setDeadline(Deadline)}.
      */
-    private void addStandardXsltParameters(XslTransformer trans, GlobalConfig config, WebsiteConfig corpus, Result<String, QueryException> metadata) {
+    private void addStandardXsltParameters(XslTransformer trans, GlobalConfig config, WebsiteConfig corpus, Result<XdmNode, QueryException> metadata, Deadline deadline) {
         String baseUrl = config.get(Keys.CF_URL_ON_CLIENT);
         String corpusId = corpus.getCorpusId().orElseThrow();
         String corpusUrl = baseUrl + "/" + corpus.getCorpusId().orElseThrow();
         if (metadata!=null) {
-            final Document doc;
-            try {
-                 doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new InputSource(new StringReader(metadata.getResult().orElse("<empty/>"))));
-            } catch (SAXException |IOException|ParserConfigurationException e) {
-                throw new RuntimeException(e);
-            }
-            trans.addParameter("metadata", doc);
+            metadata.getResult()
+                    .or(() -> parseMetadata(Result.success("<empty/>")).getResult())
+                    .ifPresent(doc -> trans.addParameter("metadata", doc));
         }
 
         // contextRoot is deprecated, but still used in some stylesheets.
@@ -138,69 +299,523 @@ public class ArticleUtil {
         trans.addParameter("corpusId", corpusId);
         trans.addParameter("corpusPath", corpusUrl);
         corpus.getXsltParameters().forEach(trans::addParameter);
+        trans.setDeadline(deadline);
+    }
+
+    /**
+     * <pre>
+     * Retrieve and transform the document metadata, and retrieve the requested page of the document's contents.
+     *
+     * The metadata and contents are retrieved concurrently where possible, see {@link #getDocumentContentAsync(WebsiteConfig, GlobalConfig, String, CompletableFuture)}.
+     * The metadata is transformed as soon as it arrives, the contents are only transformed when they're written, see {@link Content}.
+     * Once the contents have been written without errors, the complete article is cached as an {@link Article}, and the next time written from there.
+     * </pre>
+     *
+     * @param corpus required for page size
+     * @param corpusMetadata required for resolving the stylesheets
+     * @param config required for authenticating with BlackLab
+     * @param docId required for retrieving the document
+     * @param transformMetadata whether to also transform the metadata, if false {@link StreamedArticle#transformedMetadata} will be null.
+     * @return the article, never completes exceptionally unless a {@link ReturnToClientException} is thrown.
+     *          If the {@link StreamedArticle#content} is never written, it must be closed.
+     */
+    public CompletableFuture<StreamedArticle> getArticleAsync(
+            WebsiteConfig corpus,
+            CorpusConfig corpusMetadata,
+            GlobalConfig config,
+            String docId,
+            boolean transformMetadata
+    ) {
+        String corpusId = corpus.getCorpusId().orElseThrow();
+        Optional<String> key = transformMetadata
+                ? cacheKey("article", corpus, corpusMetadata, docId, "article", "meta")
+                : cacheKey("article", corpus, corpusMetadata, docId, "article");
+        Optional<Article> cached = key.flatMap(k -> servlet.getArticleCache().orElseThrow().get(Article.class, corpusId, k));
+        if (cached.isPresent()) {
+            Article a = cached.get();
+            byte[] page = a.transformedContent.getResult().orElseThrow().getBytes(StandardCharsets.UTF_8);
+            Content content = out -> Result.attempt(() -> {
+                out.write(page);
+                return out;
+            }).mapError(e -> QueryException.wrap(e, "Error writing document"));
+            return CompletableFuture.completedFuture(new StreamedArticle(a.metadata, a.pagination, a.transformedMetadata, Result.success(content), true));
+        }
+
+        // Before requesting the contents: the stylesheet may have to be retrieved from BlackLab, and the contents stream holds a connection slot.
+        Result<XslTransformer, SaxonApiException> stylesheet = getArticleStylesheet(corpusMetadata);
+        CompletableFuture<Result<String, QueryException>> metadata = getDocumentMetadataAsync(corpus, config, docId);
+        CompletableFuture<Result<XdmNode, QueryException>> parsedMetadata = metadata.thenApply(ArticleUtil::parseMetadata);
+        CompletableFuture<PaginationInfo> pagination = parsedMetadata.thenApply(md -> getPaginationInfo(corpus, md));
+        Result<XslTransformer, SaxonApiException> metaStylesheet = transformMetadata ? servlet.getStylesheet(corpusMetadata, "meta", request, response) : Result.empty();
+        CompletableFuture<Result<String, QueryException>> transformedMetadata = transformMetadata
+                ? parsedMetadata.thenApply(md -> md.flatMap(m -> transformMetadata(metaStylesheet, corpus, config, m, deadline)))
+                : CompletableFuture.completedFuture(null);
+        boolean shared = isShared();
+
+        CompletableFuture<Result<InputStream, QueryException>> contents = getDocumentContentAsync(corpus, config, docId, pagination);
+        CompletableFuture<StreamedArticle> article = contents
+                .thenCombine(parsedMetadata, (c, md) -> c.map(in -> (Content) new Content() {
+                    @Override
+                    public Result<OutputStream, QueryException> writeTo(OutputStream out) {
+                        if (key.isEmpty()) return transformDocument(corpus, corpusMetadata, config, stylesheet, Result.success(in), md, out);
+
+                        // Keep a copy of the output as it is written, so we can cache the article once it's complete.
+                        return transformDocument(corpus, corpusMetadata, config, stylesheet, Result.success(in), md, servlet.getArticleCache().orElseThrow().capture(out))
+                                .tap(capture -> {
+                                    Result<String, QueryException> meta = transformedMetadata.join();
+                                    // Only cache complete articles, errors may be temporary.
+                                    boolean complete = metadata.join().hasResult() && (meta == null || meta.hasResult());
+                                    if (!complete) return;
+                                    capture.getCaptured().ifPresent(page -> servlet.getArticleCache().orElseThrow().put(key.get(),
+                                            new Article(metadata.join(), pagination.join(), meta, Result.success(new String(page, StandardCharsets.UTF_8))), shared));
+                                })
+                                .map(ArticleCache.Capture::getTarget);
+                    }
+
+                    @Override
+                    public void close() {
+                        try {
+                            in.close();
+                        } catch (IOException e) {
+                            // ignore, we don't need it anymore.
+                        }
+                    }
+                }))
+                .thenCombine(transformedMetadata, (content, meta) -> new StreamedArticle(metadata.join(), pagination.join(), meta, content, false));
+        // The contents hold a connection to BlackLab, close them if they don't make it to the caller:
+        // when the metadata failed (e.g. a ReturnToClientException), or the caller gave up on the article (cancelled it).
+        article.whenComplete((a, e) -> {
+            if (e != null) discard(contents);
+        });
+        return article;
     }
 
     /**
+     * The transformed page of the document, if it is in the {@link ArticleCache}, see {@link #getTransformedDocument(WebsiteConfig, CorpusConfig, GlobalConfig, String, OutputStream)}.
+     * Only complete documents are cached.
+     */
+    public Optional<byte[]> getCachedDocument(WebsiteConfig corpus, CorpusConfig corpusMetadata, String docId) {
+        String corpusId = corpus.getCorpusId().orElseThrow();
+        return cacheKey("contents", corpus, corpusMetadata, docId, "article").flatMap(k -> servlet.getArticleCache().orElseThrow().get(byte[].class, corpusId, k));
+    }
+
+    /**
+     * Retrieve the requested page of the document and transform it, writing the result to the output as it is produced.
+     * The document is never held in memory in its entirety.
+     * This doesn't look in the cache, use {@link #getCachedDocument(WebsiteConfig, CorpusConfig, String)} first. The output is added to it.
+     *
+     * NOTE: when an error occurs during the transformation, part of the output may already have been written.
      *
      * @param corpus required for page size
-     * @param corpusMetadata required for page size
+     * @param corpusMetadata required for resolving the stylesheets
      * @param config required for authenticating with BlackLab
      * @param docId required for retrieving the document
-     * @param docMetadata required for pagination (need to know document length). Will be retrieved if not provided.
-     * @return the transformed document contents or an exception if the transformation failed, network failed, etc.
+     * @param out where to write the transformed document (as UTF-8), is not closed.
+     * @return the output, or an exception if the transformation failed, network failed, etc.
      */
-    public Result<String, QueryException> getTransformedDocument(
+    public <O extends OutputStream> Result<O, QueryException> getTransformedDocument(
             WebsiteConfig corpus,
             CorpusConfig corpusMetadata,
             GlobalConfig config,
             String docId,
-            Result<String, QueryException> docMetadata
+            O out
     ) {
+        Optional<String> key = cacheKey("contents", corpus, corpusMetadata, docId, "article");
+
+        // Before requesting the contents, see getArticleAsync.
+        Result<XslTransformer, SaxonApiException> stylesheet = getArticleStylesheet(corpusMetadata);
         // Metadata required for pagination (need to know document length)
-        Result<String, QueryException> metadata = docMetadata.or(() -> getDocumentMetadata(corpus, config, docId));
-        PaginationInfo pagination = getPaginationInfo(corpus, request, metadata);
-        Result<String, QueryException> contents = getDocumentContent(corpus, config, docId, pagination);
-        return transformDocument(corpus, corpusMetadata, config, contents, metadata);
+        CompletableFuture<Result<XdmNode, QueryException>> metadata = getDocumentMetadataAsync(corpus, config, docId).thenApply(ArticleUtil::parseMetadata);
+        CompletableFuture<PaginationInfo> pagination = metadata.thenApply(md -> getPaginationInfo(corpus, md));
+        Result<InputStream, QueryException> contents = BlackLabApi.await(getDocumentContentAsync(corpus, config, docId, pagination));
+        if (key.isEmpty()) return transformDocument(corpus, corpusMetadata, config, stylesheet, contents, BlackLabApi.await(metadata), out);
+
+        // Keep a copy of the output as it is written, so we can cache it once it's complete.
+        return transformDocument(corpus, corpusMetadata, config, stylesheet, contents, BlackLabApi.await(metadata), servlet.getArticleCache().orElseThrow().capture(out))
+                .tap(capture -> capture.store(key.get(), isShared()))
+                .map(ArticleCache.Capture::getTarget);
     }
 
-    public Result<String, QueryException> getTransformedMetadata(
+    /**
+     * Retrieve the metadata of the document and transform it, writing the result to the output as it is produced.
+     * Errors in retrieving the metadata are returned before anything is written.
+     *
+     * @param out where to write the transformed metadata (as UTF-8), is not closed.
+     */
+    public <O extends OutputStream> Result<O, QueryException> getTransformedMetadata(
         CorpusConfig corpus,
         WebsiteConfig corpusConfig,
         GlobalConfig config,
-        String docId
+        String docId,
+        O out
     ) {
-        Result<String, QueryException> meta = getDocumentMetadata(corpusConfig, config, docId);
-        return transformMetadata(corpus, corpusConfig, config, meta);
+        String corpusId = corpusConfig.getCorpusId().orElseThrow();
+        Optional<String> key = cacheKey("meta", corpusConfig, corpus, docId, "meta");
+        Optional<String> cached = key.flatMap(k -> servlet.getArticleCache().orElseThrow().get(String.class, corpusId, k));
+        if (cached.isPresent()) {
+            return Result.attempt(() -> {
+                out.write(cached.get().getBytes(StandardCharsets.UTF_8));
+                return out;
+            }).mapError(e -> QueryException.wrap(e, "Error writing metadata"));
+        }
+
+        Result<XslTransformer, SaxonApiException> stylesheet = servlet.getStylesheet(corpus, "meta", request, response);
+        Result<XdmNode, QueryException> meta = parseMetadata(getDocumentMetadata(corpusConfig, config, docId));
+        if (key.isEmpty()) return meta.flatMap(md -> transformMetadata(stylesheet, corpusConfig, config, md, out));
+
+        // Keep a copy of the output as it is written, so we can cache it once it's complete.
+        boolean shared = isShared();
+        return meta.flatMap(md -> transformMetadata(stylesheet, corpusConfig, config, md, servlet.getArticleCache().orElseThrow().capture(out)))
+                .tap(capture -> capture.getCaptured().ifPresent(html -> servlet.getArticleCache().orElseThrow().put(key.get(), new String(html, StandardCharsets.UTF_8), shared)))
+                .map(ArticleCache.Capture::getTarget);
     }
 
-    private Result<String, QueryException> transformDocument(WebsiteConfig corpus, CorpusConfig corpusMetadata, GlobalConfig config, Result<String, QueryException> contents, Result<String, QueryException> metadata) {
+    /**
+     * The stylesheet for the document contents.
+     * Not needed (and empty) for corpora of which the contents are never xml, see {@link #TEXT_FORMATS}.
+     */
+    private Result<XslTransformer, SaxonApiException> getArticleStylesheet(CorpusConfig corpusMetadata) {
+        boolean text = corpusMetadata.getCorpusDataFormat().map(f -> f.toLowerCase(Locale.ROOT)).filter(TEXT_FORMATS::contains).isPresent();
+        return text ? Result.empty() : servlet.getStylesheet(corpusMetadata, "article", request, response);
+    }
+
+    /**
+     * Transform the contents, writing the result to out. The contents are closed afterwards.
+     * Contents that aren't xml are written as-is in a &lt;pre&gt; tag.
+     * @param stylesheet see {@link #getArticleStylesheet(CorpusConfig)}, resolved before the contents were requested.
+     */
+    private <O extends OutputStream> Result<O, QueryException> transformDocument(WebsiteConfig corpus, CorpusConfig corpusMetadata, GlobalConfig config, Result<XslTransformer, SaxonApiException> stylesheet, Result<InputStream, QueryException> contents, Result<XdmNode, QueryException> metadata, O out) {
         return contents.flatMap(c -> {
-            // If the document contents aren't xml, don't bother with the transformer.
-            if (!XML_TAG_PATTERN.matcher(c).find()) {
-                return Result.success("<pre>" + StringUtils.replaceEach(c,
-                        new String[]{"<hl>", "</hl>"},
-                        new String[]{"<span class=\"hl\">", "</span>"}
-                ) + "</pre>");
-            }
+            try (BufferedInputStream in = new BufferedInputStream(c, XML_SNIFF_LENGTH)) {
+                // If the document contents aren't xml, don't bother with the transformer.
+                if (!isXml(corpusMetadata, in)) {
+                    Writer w = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+                    writePlainText(new InputStreamReader(in, StandardCharsets.UTF_8), w);
+                    w.flush();
+                    return Result.success(out);
+                }
 
-            // we managed to get the contents, and they're definitely xml.
-            // Load the transformer.
-            return servlet.getStylesheet(corpusMetadata, "article", request, response)
-                    .tap(trans -> this.addStandardXsltParameters(trans, config, corpus, metadata))
-                    .mapWithErrorHandling(trans -> trans.transform(c))
-                    .mapError(e ->
-                        new QueryException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-                                "Error transforming document: " + e.getMessage()));
+                // we managed to get the contents, and they're definitely xml.
+                return stylesheet
+                        .tap(trans -> this.addStandardXsltParameters(trans, config, corpus, metadata, deadline))
+                        .mapWithErrorHandling(trans -> trans.streamTransform(in, out))
+                        .mapError(e -> transformError("Error transforming document: ", e));
+            } catch (IOException e) {
+                return Result.error(QueryException.wrap(e, "Error reading document contents"));
+            }
         });
     }
 
-    public Result<String, QueryException> transformMetadata(CorpusConfig corpus, WebsiteConfig corpusConfig, GlobalConfig config, Result<String, QueryException> metadata) {
-        return metadata.flatMap(md ->
-            servlet.getStylesheet(corpus,"meta",request, response)
-            .tap(trans -> this.addStandardXsltParameters(trans, config, corpusConfig, null))
-            .mapWithErrorHandling(trans -> trans.transform(md))
-            .mapError(e -> new QueryException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Error transforming metadata: " + e.getMessage()))
-        );
+    /**
+     * Are the contents xml? Decided by the format of the corpus if it's a known one,
+     * otherwise by whether the start of the contents contains an xml tag, see {@link #containsXmlTag(byte[])}.
+     * Only the first part of the contents is inspected, so we don't have to read the entire document into memory.
+     * The stream is reset to the start afterwards.
+     */
+    private static boolean isXml(CorpusConfig corpus, BufferedInputStream in) throws IOException {
+        Optional<String> format = corpus.getCorpusDataFormat().map(f -> f.toLowerCase(Locale.ROOT));
+        if (format.filter(XML_FORMATS::contains).isPresent()) return true;
+        if (format.filter(TEXT_FORMATS::contains).isPresent()) return false;
+
+        in.mark(XML_SNIFF_LENGTH);
+        byte[] prefix = in.readNBytes(XML_SNIFF_LENGTH);
+        in.reset();
+        return containsXmlTag(prefix);
+    }
+
+    /**
+     * <pre>
+     * Does the text contain an xml open or void tag: &lt;namespace:tagname attribute="value"/&gt;
+     * Excluding hl tags, as those are inserted by BlackLab and can result in false positives, and &lt;blacklabResponse&gt; and &lt;?xml&gt;.
+     *
+     * A single pass over the bytes (the syntax is ascii, so the encoding doesn't matter), no regex backtracking.
+     * Attribute values are limited to letters, digits, whitespace and :/()='+-_, like the tags we expect in documents.
+     * </pre>
+     */
+    static boolean containsXmlTag(byte[] text) {
+        for (int start = indexOf(text, '<', 0); start != -1; start = indexOf(text, '<', start + 1)) {
+            int nameStart = start + 1;
+            int nameEnd = skip(text, nameStart, ArticleUtil::isNameChar);
+            // namespace prefix
+            if (nameEnd < text.length && text[nameEnd] == ':' && nameEnd > nameStart && skip(text, nameStart, ArticleUtil::isWordChar) == nameEnd) {
+                nameStart = nameEnd + 1;
+                nameEnd = skip(text, nameStart, ArticleUtil::isNameChar);
+            }
+            if (nameEnd == nameStart || isExcludedTag(text, nameStart, nameEnd)) continue;
+
+            int i = nameEnd;
+            while (true) {
+                int attrStart = skip(text, i, ArticleUtil::isWhitespace);
+                if (attrStart == i) break;
+                int attrEnd = skip(text, attrStart, c -> isNameChar(c) || c == ':');
+                if (attrEnd == attrStart || attrEnd + 1 >= text.length || text[attrEnd] != '=' || text[attrEnd + 1] != '"') break;
+                int valueEnd = skip(text, attrEnd + 2, ArticleUtil::isAttributeValueChar);
+                if (valueEnd >= text.length || text[valueEnd] != '"') break;
+                i = valueEnd + 1;
+            }
+            if (i < text.length && text[i] == '/') ++i;
+            if (i < text.length && text[i] == '>') return true;
+        }
+        return false;
+    }
+
+    /** Is the tag name hl, blacklabResponse or xml (any case), or does it start with one of those followed by a dot? */
+    private static boolean isExcludedTag(byte[] text, int nameStart, int nameEnd) {
+        String start = new String(text, nameStart, Math.min(nameEnd - nameStart, "blacklabResponse".length() + 1), StandardCharsets.US_ASCII);
+        for (String excluded : List.of("hl", "blacklabResponse", "xml")) {
+            String candidate = excluded.equals("xml") ? start.toLowerCase(Locale.ROOT) : start;
+            if (candidate.startsWith(excluded) && (candidate.length() == excluded.length() || candidate.charAt(excluded.length()) == '.')) return true;
+        }
+        return false;
+    }
+
+    private interface BytePredicate {
+        boolean test(byte b);
+    }
+
+    /** @return the index of the first byte from start that doesn't match, or the length of the text. */
+    private static int skip(byte[] text, int start, BytePredicate p) {
+        int i = start;
+        while (i < text.length && p.test(text[i])) ++i;
+        return i;
+    }
+
+    private static int indexOf(byte[] text, char c, int start) {
+        for (int i = start; i < text.length; ++i) if (text[i] == c) return i;
+        return -1;
+    }
+
+    private static boolean isWordChar(byte c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    private static boolean isNameChar(byte c) {
+        return isWordChar(c) || c == '.';
+    }
+
+    private static boolean isWhitespace(byte c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+    }
+
+    private static boolean isAttributeValueChar(byte c) {
+        return isWordChar(c) || isWhitespace(c) || ":/()='+-,".indexOf(c) != -1;
+    }
+
+    /**
+     * Write plain text contents in a &lt;pre&gt; tag, in a single pass:
+     * the text is html-escaped, and the hit tags inserted by BlackLab are replaced by spans.
+     */
+    static void writePlainText(Reader in, Writer out) throws IOException {
+        out.write("<pre>");
+        char[] buf = new char[8192];
+        int length = 0;
+        int n;
+        while ((n = in.read(buf, length, buf.length - length)) != -1) {
+            length += n;
+            int done = writeEscaped(buf, length, false, out);
+            // Don't split a <hl> or </hl> tag between reads, keep the trailing part of the tag for the next read.
+            System.arraycopy(buf, done, buf, 0, length - done);
+            length -= done;
+        }
+        writeEscaped(buf, length, true, out);
+        out.write("</pre>");
+    }
+
+    /**
+     * Write buf[0, length) escaped.
+     * @param last whether this is the end of the text, if not, a possible partial hit tag at the end is not written.
+     * @return how much was written.
+     */
+    private static int writeEscaped(char[] buf, int length, boolean last, Writer out) throws IOException {
+        int written = 0;
+        for (int i = 0; i < length; ++i) {
+            String replacement;
+            int skip = 1;
+            switch (buf[i]) {
+                case '&': replacement = "&amp;"; break;
+                case '>': replacement = "&gt;"; break;
+                case '<':
+                    if (startsWith(buf, i, length, "<hl>")) { replacement = "<span class=\"hl\">"; skip = 4; }
+                    else if (startsWith(buf, i, length, "</hl>")) { replacement = "</span>"; skip = 5; }
+                    else if (!last && isPartialHitTag(buf, i, length)) { out.write(buf, written, i - written); return i; }
+                    else replacement = "&lt;";
+                    break;
+                default: continue;
+            }
+            out.write(buf, written, i - written);
+            out.write(replacement);
+            i += skip - 1;
+            written = i + 1;
+        }
+        out.write(buf, written, length - written);
+        return length;
+    }
+
+    private static boolean startsWith(char[] buf, int start, int length, String s) {
+        if (length - start < s.length()) return false;
+        for (int i = 0; i < s.length(); ++i) if (buf[start + i] != s.charAt(i)) return false;
+        return true;
+    }
+
+    /** Is buf[start, length) the start of a hit tag, which may be completed by the next read? */
+    private static boolean isPartialHitTag(char[] buf, int start, int length) {
+        if (length - start >= "</hl>".length()) return false;
+        String rest = new String(buf, start, length - start);
+        return "<hl>".startsWith(rest) || "</hl>".startsWith(rest);
+    }
+
+    /**
+     * @param stylesheet the meta stylesheet, a copy is used, so it may be shared between threads.
+     * @param deadline limits the transformation, e.g. the time of a single document in a batch.
+     */
+    private Result<String, QueryException> transformMetadata(Result<XslTransformer, SaxonApiException> stylesheet, WebsiteConfig corpusConfig, GlobalConfig config, XdmNode metadata, Deadline deadline) {
+        return stylesheet
+            .map(XslTransformer::copy)
+            .tap(trans -> this.addStandardXsltParameters(trans, config, corpusConfig, null, deadline))
+            .mapWithErrorHandling(trans -> trans.transform(metadata))
+            .mapError(e -> transformError("Error transforming metadata: ", e));
+    }
+
+    /** Like {@link #transformMetadata(Result, WebsiteConfig, GlobalConfig, XdmNode, Deadline)}, writing the result to out as it is produced. */
+    private <O extends OutputStream> Result<O, QueryException> transformMetadata(Result<XslTransformer, SaxonApiException> stylesheet, WebsiteConfig corpusConfig, GlobalConfig config, XdmNode metadata, O out) {
+        return stylesheet
+            .map(XslTransformer::copy)
+            .tap(trans -> this.addStandardXsltParameters(trans, config, corpusConfig, null, deadline))
+            .mapWithErrorHandling(trans -> trans.streamTransform(metadata, out))
+            .mapError(e -> transformError("Error transforming metadata: ", e));
+    }
+
+    /** When all xslt workers are busy, the client may try again later, see {@link XslTransformer#setWorkers(int, int)}. */
+    private static QueryException transformError(String message, Exception e) {
+        int status = e instanceof XslTransformer.BusyException ? HttpServletResponse.SC_SERVICE_UNAVAILABLE : HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+        return new QueryException(status, message + e.getMessage());
+    }
+
+    /**
+     * Retrieve and transform the metadata of many documents, with at most {@code parallelism} documents in progress at the same time.
+     * The stylesheet is resolved (and compiled) once, and shared by all documents.
+     *
+     * @param consumer receives the transformed metadata of every document, in the order in which they complete.
+     *                 Always called on the current thread, so it may write to the response.
+     */
+    public void getTransformedMetadata(
+            CorpusConfig corpus,
+            WebsiteConfig corpusConfig,
+            GlobalConfig config,
+            Collection<String> docIds,
+            int parallelism,
+            BiConsumer<String, Result<String, QueryException>> consumer
+    ) {
+        Result<XslTransformer, SaxonApiException> stylesheet = servlet.getStylesheet(corpus, "meta", request, response);
+        String corpusId = corpusConfig.getCorpusId().orElseThrow();
+        // Every document gets its own time, so documents late in a large batch aren't starved by the ones before them.
+        Duration documentTimeout = BlackLabHttpClient.parseMillis(config.get(Keys.API_BATCH_DOCUMENT_TIMEOUT));
+        Optional<ArticleCache> cache = servlet.getArticleCache();
+        boolean shared = isShared();
+        BlockingQueue<Map.Entry<String, Result<String, QueryException>>> done = new LinkedBlockingQueue<>();
+        Iterator<String> pending = docIds.iterator();
+        int inProgress = 0;
+        try {
+            while (pending.hasNext() || inProgress > 0) {
+                while (inProgress < parallelism && pending.hasNext()) {
+                    String docId = pending.next();
+                    Optional<String> key = cacheKey("meta", corpusConfig, corpus, docId, "meta");
+                    Optional<String> cached = key.flatMap(k -> cache.orElseThrow().get(String.class, corpusId, k));
+                    if (cached.isPresent()) {
+                        done.add(Map.entry(docId, Result.success(cached.get())));
+                    } else {
+                        Deadline documentDeadline = Deadline.after(documentTimeout);
+                        getDocumentMetadataAsync(corpusConfig, config, docId, documentDeadline)
+                                .thenApply(md -> parseMetadata(md).flatMap(m -> transformMetadata(stylesheet, corpusConfig, config, m, documentDeadline)))
+                                .thenApply(r -> r.tap(html -> key.ifPresent(k -> cache.orElseThrow().put(k, html, shared))))
+                                .whenComplete((r, e) -> done.add(Map.entry(docId, e == null ? r : Result.error(toQueryException(e)))));
+                    }
+                    ++inProgress;
+                }
+                Map.Entry<String, Result<String, QueryException>> next = done.take();
+                --inProgress;
+                consumer.accept(next.getKey(), next.getValue());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ReturnToClientException(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Interrupted while retrieving document metadata");
+        }
+    }
+
+    /**
+     * <pre>
+     * Key for the {@link ArticleCache}, it must cover everything the output depends on:
+     * the document, the requested page and query (the request parameters, the page we get from BlackLab follows from those and the page size),
+     * the user (who may have access to different documents), the stylesheets and their parameters,
+     * and the version of the corpus, so entries from before it was indexed again (e.g. on disk) are not used.
+     * </pre>
+     * @param stylesheets the names of the stylesheets used to produce the output.
+     * @return empty if the output should not be cached: caching is disabled, or a stylesheet could not be loaded.
+     */
+    private Optional<String> cacheKey(String kind, WebsiteConfig corpus, CorpusConfig corpusMetadata, String docId, String... stylesheets) {
+        if (servlet.getArticleCache().isEmpty()) return Optional.empty();
+        return outputKey(kind, corpus, corpusMetadata, docId, stylesheets);
+    }
+
+    /**
+     * <pre>
+     * ETag for a transformed document, so a client that already has it can be sent a 304 without asking BlackLab or running the stylesheets.
+     * Built from the same things as the cache key (the document, page, query, user, stylesheets and corpus version),
+     * plus the version of the search.xml, of the corpus config from BlackLab, and anything else the caller's output depends on.
+     * These are the same on every server and after a restart, so the ETag is as well.
+     * </pre>
+     * @param extra other things the output depends on, e.g. values used by the page template.
+     * @param stylesheets the names of the stylesheets used to produce the output.
+     * @return empty if the version of the corpus or its config is unknown, as we can't tell whether the document changed then.
+     */
+    public Optional<String> getETag(String kind, WebsiteConfig corpus, CorpusConfig corpusMetadata, String docId, Collection<?> extra, String... stylesheets) {
+        if (servlet.getCorpusVersions().getVersion(corpusMetadata.getCorpusId()).isEmpty() || corpusMetadata.getVersion().isEmpty()) return Optional.empty();
+        return outputKey(kind, corpus, corpusMetadata, docId, stylesheets)
+                .map(key -> key + "&config=" + corpus.getVersion() + "&index=" + encode(corpusMetadata.getVersion().get()) + "&extra=" + extra)
+                .map(key -> "W/" + StaticFileHandler.generateContentETag(key));
+    }
+
+    private Optional<String> outputKey(String kind, WebsiteConfig corpus, CorpusConfig corpusMetadata, String docId, String... stylesheets) {
+        StringBuilder key = new StringBuilder(kind);
+        key.append('/').append(encode(corpus.getCorpusId().orElseThrow())).append('/').append(encode(docId));
+        for (String name : stylesheets) {
+            Optional<String> stylesheet = servlet.getStylesheet(corpusMetadata, name, request, response).getResult().map(XslTransformer::getCacheKey);
+            if (stylesheet.isEmpty()) return Optional.empty();
+            key.append("&xsl=").append(encode(stylesheet.get()));
+        }
+        for (String param : CACHE_KEY_PARAMETERS) {
+            getParameter(param).ifPresent(v -> key.append('&').append(param).append('=').append(encode(v)));
+        }
+        corpus.getPageSize().ifPresent(p -> key.append("&pagesize=").append(p));
+        new TreeMap<>(corpus.getXsltParameters()).forEach((k, v) -> key.append("&xslparam.").append(encode(k)).append('=').append(encode(v)));
+        blacklab.getUserKey().ifPresent(u -> key.append("&user=").append(u));
+        servlet.getCorpusVersions().getVersion(corpusMetadata.getCorpusId()).ifPresent(v -> key.append("&version=").append(encode(v)));
+        return Optional.of(key.toString());
+    }
+
+    /** Matches the {@link ArticleCache} keys of the corpus, see {@link #cacheKey(String, WebsiteConfig, CorpusConfig, String, String...)}. */
+    public static Predicate<String> cacheKeysOf(String corpus) {
+        String segment = "/" + encode(corpus) + "/";
+        return key -> key.startsWith(segment, key.indexOf('/'));
+    }
+
+    /** Is the output the same for every user (i.e. the request is not authenticated), so it may be persisted? */
+    private boolean isShared() {
+        return blacklab.getUserKey().isEmpty();
+    }
+
+    private static String encode(String s) {
+        return URLEncoder.encode(s, StandardCharsets.UTF_8);
+    }
+
+    /** Exceptions that escaped a future, e.g. a ReturnToClientException for a missing login, become errors of the individual document. */
+    private static QueryException toQueryException(Throwable e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        if (cause instanceof ReturnToClientException) {
+            ReturnToClientException r = (ReturnToClientException) cause;
+            return new QueryException(r.getCode(), r.getBody() != null ? r.getBody() : r.getMessage());
+        }
+        return cause instanceof Exception ? QueryException.wrap((Exception) cause) : new QueryException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, cause.toString());
     }
 
     public static Optional<String> getParameter(String name, HttpServletRequest request) {
@@ -208,7 +823,20 @@ public class ArticleUtil {
     }
 
     public static Optional<Integer> getIntParameter(String name, HttpServletRequest request) {
-        return getParameter(name, request).map(p -> {
+        return parseIntParameter(name, getParameter(name, request));
+    }
+
+    /** The value of one of the {@link #CACHE_KEY_PARAMETERS}, may be used on any thread. */
+    private Optional<String> getParameter(String name) {
+        return Optional.ofNullable(parameters.get(name));
+    }
+
+    private Optional<Integer> getIntParameter(String name) {
+        return parseIntParameter(name, getParameter(name));
+    }
+
+    private static Optional<Integer> parseIntParameter(String name, Optional<String> value) {
+        return value.map(p -> {
             try {
                 return Integer.parseInt(p);
             } catch (NumberFormatException e) {
@@ -218,12 +846,12 @@ public class ArticleUtil {
         });
     }
 
-    public static PaginationInfo getPaginationInfo(WebsiteConfig corpusConfig, HttpServletRequest request, Result<String, QueryException> documentMetadata) {
+    private PaginationInfo getPaginationInfo(WebsiteConfig corpusConfig, Result<XdmNode, QueryException> documentMetadata) {
         Optional<Integer> pageSize = corpusConfig.getPageSize();
-        Optional<Integer> pageStart = getIntParameter("wordstart", request);
-        Optional<Integer> pageEnd = getIntParameter("wordend", request);
-        Optional<Integer> hitStart = getIntParameter("findhit", request);
-        Optional<String>  fieldToShow = getParameter("field", request);
+        Optional<Integer> pageStart = getIntParameter("wordstart");
+        Optional<Integer> pageEnd = getIntParameter("wordend");
+        Optional<Integer> hitStart = getIntParameter("findhit");
+        Optional<String>  fieldToShow = getParameter("field");
         return new PaginationInfo(pageSize, documentMetadata, pageStart, pageEnd, hitStart, fieldToShow);
     }
 }
@@ -1,24 +1,27 @@
 package nl.inl.corpuswebsite.utils;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.URI;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
-import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 
+import nl.inl.corpuswebsite.utils.BlackLabHttpClient.Endpoint;
+
 /** Factory pattern url builder */
 class URLBuilder<T extends URLBuilder<T>> {
     protected String url;
@@ -172,28 +175,35 @@ class URLBuilder<T extends URLBuilder<T>> {
                 + (hash != null ? "#" + URLEncoder.encode(hash, StandardCharsets.UTF_8) : "");
     }
 
-    public HttpURLConnection connect() throws QueryException {
+    /** Build the request for the http client. The timeout is set by the client when the request is sent. */
+    public HttpRequest.Builder build() throws QueryException {
         try {
-            URL urlObj = new URL(getUrl());
-            HttpURLConnection connection = (HttpURLConnection) urlObj.openConnection();
-            connection.setInstanceFollowRedirects(true);
-            connection.setRequestMethod(method);
+            HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(getUrl()))
+                    .method(method, HttpRequest.BodyPublishers.noBody());
 
             if (headers != null) {
                 for (Entry<String, String> header: headers.entrySet()) {
-                    connection.addRequestProperty(header.getKey(), header.getValue());
-                }
-                if (cookies != null) {
-                    connection.addRequestProperty("Cookie", cookies.entrySet().stream().map(c -> c.getKey() + "=" + c.getValue()).collect(Collectors.joining(";")));
+                    builder.header(header.getKey(), header.getValue());
                 }
             }
-
-            connection.connect();
-            return connection;
-        } catch (IOException e) {
-            throw QueryException.wrap(e, "Error connecting to url " + url);
+            if (cookies != null) {
+                builder.header("Cookie", cookies.entrySet().stream().map(c -> c.getKey() + "=" + c.getValue()).collect(Collectors.joining(";")));
+            }
+            return builder;
+        } catch (IllegalArgumentException e) {
+            throw QueryException.wrap(e, "Invalid url " + url);
         }
     }
+
+    /** Perform the request using the shared http client. */
+    public HttpResponse<String> connect(Endpoint endpoint, Deadline deadline) throws QueryException {
+        return BlackLabHttpClient.getInstance().send(build(), endpoint, deadline);
+    }
+
+    /** Perform the request using the shared http client, streaming the response body. The body must be closed. */
+    public HttpResponse<InputStream> connectStream(Endpoint endpoint, Deadline deadline) throws QueryException {
+        return BlackLabHttpClient.getInstance().stream(build(), endpoint, deadline);
+    }
 }
 
 /** 
@@ -209,34 +219,40 @@ class URLBuilder<T extends URLBuilder<T>> {
  * For more advanced authentication methods, no special logic exists, no ReturnToClientException is thrown, and the 401/403 is simply returned to the caller.
  */
 public class AuthRequest extends URLBuilder<AuthRequest> {
-    /** May be null */
-    private final HttpServletRequest request;
-    /** May be null. */
-    private final HttpServletResponse response;
+    /**
+     * Whether the request is made on behalf of a client, so a missing login may be forwarded to it.
+     * The client request itself is not kept, as requests are made from other threads.
+     */
+    private final boolean forClient;
 
-    private String method = "GET";
+    /** Used to determine the timeout for this request. */
+    private Endpoint endpoint = Endpoint.OTHER;
+    /** The time left for the client request. */
+    private final Deadline deadline;
 
     /** Standard request without authentication support. We don't need the config if we're not going to communicate to the client. */
     public AuthRequest(String url) {
         super(url);
-        this.request = null;
-        this.response = null;
+        this.forClient = false;
+        this.deadline = Deadline.NONE;
     }
 
-    public AuthRequest(HttpServletRequest request, HttpServletResponse response) {
+    /** @param deadline of the client request, see {@link Deadline#of(jakarta.servlet.http.HttpServletRequest)}. */
+    public AuthRequest(boolean forClient, Deadline deadline) {
         super();
-        this.request = request;
-        this.response = response;
+        this.forClient = forClient;
+        this.deadline = deadline;
     }
 
-    public AuthRequest(HttpServletRequest request, HttpServletResponse response, String url) {
+    /** @param deadline of the client request, see {@link Deadline#of(jakarta.servlet.http.HttpServletRequest)}. */
+    public AuthRequest(boolean forClient, Deadline deadline, String url) {
         super(url);
-        this.request = request;
-        this.response = response;
+        this.forClient = forClient;
+        this.deadline = deadline;
     }
 
-    public AuthRequest method(String method) {
-        this.method = method;
+    public AuthRequest endpoint(Endpoint endpoint) {
+        this.endpoint = endpoint;
         return this;
     }
 
@@ -254,24 +270,43 @@ public class AuthRequest extends URLBuilder<AuthRequest> {
      * @throws ReturnToClientException when authentication is required but not provided. The response is modified to add the www-authorization header prior to throwing.
      */
     public Result<String, QueryException> request(boolean hardFailOnMissingAuth) {
+        return exchange(hardFailOnMissingAuth, b -> b.connect(endpoint, deadline)).flatMap(AuthRequest::decode);
+    }
+
+    /**
+     * Same as {@link #request(boolean)}, but returns the response itself rather than decoding it.
+     * Redirects are followed and missing authentication is handled, but any other status (e.g. 304 Not Modified, or an error) is returned as-is.
+     */
+    public Result<HttpResponse<String>, QueryException> requestResponse(boolean hardFailOnMissingAuth) {
+        return exchange(hardFailOnMissingAuth, b -> b.connect(endpoint, deadline));
+    }
+
+    /**
+     * Same as {@link #request(boolean)}, but the body of a successful response is streamed instead of read into memory.
+     * The caller MUST close the stream, as it holds on to a connection to BlackLab until then.
+     * Error responses are read in their entirety, as with {@link #request(boolean)}.
+     */
+    public Result<InputStream, QueryException> stream(boolean hardFailOnMissingAuth) {
+        return exchange(hardFailOnMissingAuth, b -> b.connectStream(endpoint, deadline)).flatMap(AuthRequest::decodeStream);
+    }
+
+    private <T> Result<HttpResponse<T>, QueryException> exchange(boolean hardFailOnMissingAuth, Result.ThrowableFunction<URLBuilder<?>, HttpResponse<T>, QueryException> connect) {
         try {
-            HttpURLConnection r = connect();
+            HttpResponse<T> r = connect.apply(this);
             int redirects = 0;
             while (redirects < 10) {
-                int code = r.getResponseCode();
-                if (code == -1)
-                    return Result.error(new QueryException(-1, "Unexpected response from url " + url));
+                int code = r.statusCode();
 
-                // redirect is not followed into other protocol ex. http to https
-                // see https://stackoverflow.com/a/1884427
+                // We follow redirects ourselves (including into other protocols, e.g. http to https)
+                // so the method, headers and cookies are preserved.
                 if (code >= 300 && code < 400) {
-                    String newUrl = r.getHeaderField("location");
-                    if (newUrl != null && !newUrl.isEmpty()) {
-                        r = new URLBuilder<>(newUrl) // should already contain query and hash
+                    Optional<String> newUrl = r.headers().firstValue("location").filter(l -> !l.isEmpty());
+                    if (newUrl.isPresent()) {
+                        close(r);
+                        r = connect.apply(new URLBuilder<>(r.uri().resolve(newUrl.get()).toString()) // should already contain query and hash
                                 .method(this.method)
-                                .headers(this.headers)
-                                .cookies(this.cookies)
-                                .connect();
+                                .headers(this.headers != null ? this.headers : Map.of())
+                                .cookies(this.cookies != null ? this.cookies : Map.of()));
                         ++redirects;
                         continue;
                     }
@@ -280,46 +315,87 @@ public class AuthRequest extends URLBuilder<AuthRequest> {
                 // in all cases this request is performed on behalf of a user's request to this application
                 // therefor, if this request fails because of missing authentication, we should forward the request for authentication to the client.
                 // if there is a www-authenticate header, we should forward it to the user
-                if (hardFailOnMissingAuth && r.getHeaderField("www-authenticate") != null) {
-                    r.getHeaderFields().forEach((k, v) -> v.forEach(w -> response.addHeader(k, w)));
-                    InputStream s = r.getErrorStream() != null ? r.getErrorStream() : r.getInputStream();
-                    String content = new BufferedReader(new InputStreamReader(s, StandardCharsets.UTF_8)).lines().collect(Collectors.joining("\n"));
-                    throw new ReturnToClientException(code, content);
+                if (hardFailOnMissingAuth && forClient && r.headers().firstValue("www-authenticate").isPresent()) {
+                    String body = readBody(r);
+                    // Requests may run on a background thread (see requestAsync), the headers are added to the response by the thread handling the client request.
+                    Map<String, List<String>> headers = new LinkedHashMap<>();
+                    r.headers().map().forEach((k, v) -> {
+                        if (!k.startsWith(":")) headers.put(k, v); // skip http/2 pseudo-headers
+                    });
+                    throw new ReturnToClientException(code, body, headers);
                 }
 
-                return decode(r);
+                return Result.success(r);
             }
+            close(r);
             return Result.error(new QueryException(HttpServletResponse.SC_BAD_GATEWAY, "Too many redirects"));
-        } catch (IOException | QueryException e) {
-            return Result.error(QueryException.wrap(e));
+        } catch (QueryException e) {
+            return Result.error(e);
         }
     }
 
+    /**
+     * Same as {@link #request(boolean)}, but performed on a background thread.
+     * A {@link ReturnToClientException} completes the future exceptionally, use {@link BlackLabApi#await(CompletableFuture)} to rethrow it.
+     */
+    public CompletableFuture<Result<String, QueryException>> requestAsync(boolean hardFailOnMissingAuth) {
+        return CompletableFuture.supplyAsync(() -> request(hardFailOnMissingAuth), BlackLabHttpClient.getInstance().getExecutor());
+    }
+
+    /** Same as {@link #stream(boolean)}, but performed on a background thread. */
+    public CompletableFuture<Result<InputStream, QueryException>> streamAsync(boolean hardFailOnMissingAuth) {
+        return CompletableFuture.supplyAsync(() -> stream(hardFailOnMissingAuth), BlackLabHttpClient.getInstance().getExecutor());
+    }
+
     /**
      * Decode the result (or error), returning the contents in the String if it's a success.
      * Returns a queryException containing the httpcode and body if it's an error.
-     * If an ioerror occurs, it's wrapped in a queryexception with code 500.
      *
-     * @param conn the connection holding the response.
+     * @param r the response.
      *
      * @return the result of the above.
      */
-    protected static Result<String, QueryException> decode(HttpURLConnection conn) {
-        try {
-            int code = conn.getResponseCode();
-            if (conn.getErrorStream() != null) {
-                String body = new BufferedReader(new InputStreamReader(conn.getErrorStream(), StandardCharsets.UTF_8)).lines().collect(Collectors.joining("\n"));
-                return Result.error(new QueryException(code, body));
-            } else if (code < 200 || code >= 300) {
-                return Result.error(new QueryException(code, "Unexpected response (http " + code + ") from url " + conn.getURL()));
-            } else if (code == 204) {
-                return Result.success("");
-            } else {
-                String body = new BufferedReader(new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8)).lines().collect(Collectors.joining("\n"));
-                return Result.success(body);
-            }
+    protected static Result<String, QueryException> decode(HttpResponse<String> r) {
+        int code = r.statusCode();
+        if (code >= 400) {
+            return Result.error(new QueryException(code, r.body()));
+        } else if (code < 200 || code >= 300) {
+            return Result.error(new QueryException(code, "Unexpected response (http " + code + ") from url " + r.uri()));
+        } else if (code == 204) {
+            return Result.success("");
+        } else {
+            return Result.success(r.body());
+        }
+    }
+
+    /** Same as {@link #decode(HttpResponse)}, the body is only read when it's an error. */
+    protected static Result<InputStream, QueryException> decodeStream(HttpResponse<InputStream> r) {
+        int code = r.statusCode();
+        if (code >= 200 && code < 300) return Result.success(r.body());
+
+        String body = readBody(r);
+        if (code >= 400) return Result.error(new QueryException(code, body));
+        return Result.error(new QueryException(code, "Unexpected response (http " + code + ") from url " + r.uri()));
+    }
+
+    /** Get the body as string, reading (and closing) it if it's a stream. */
+    private static String readBody(HttpResponse<?> r) {
+        if (!(r.body() instanceof InputStream)) return String.valueOf(r.body());
+        try (InputStream in = (InputStream) r.body()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
         } catch (IOException e) {
-            return Result.error(QueryException.wrap(e));
+            return "Error reading response from url " + r.uri() + ": " + e.getMessage();
         }
     }
-}
\ No newline at end of file
+
+    /** Discard the body of a response we're not going to use, releasing its connection. */
+    private static void close(HttpResponse<?> r) {
+        if (r.body() instanceof InputStream) {
+            try {
+                ((InputStream) r.body()).close();
+            } catch (IOException e) {
+                // ignore, we don't need it anyway.
+            }
+        }
+    }
+}
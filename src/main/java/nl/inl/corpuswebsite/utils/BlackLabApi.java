@@ -1,67 +1,416 @@
 package nl.inl.corpuswebsite.utils;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import jakarta.servlet.http.Cookie;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import nl.inl.corpuswebsite.utils.BlackLabHttpClient.Endpoint;
+import nl.inl.corpuswebsite.utils.ConditionalCache.Aged;
+import nl.inl.corpuswebsite.utils.ConditionalCache.Entry;
+import nl.inl.corpuswebsite.utils.ConditionalCache.Validators;
 import nl.inl.corpuswebsite.utils.GlobalConfig.Keys;
 
 /**
  * Helper class for talking to BlackLab.
  * Is initialized with the BlackLab server URL once on startup.
  * Has methods for getting various things from BlackLab, with the ability to copy basic auth headers from the client request (which is why it needs the request and response objects).
+ * <pre>
+ * Index metadata, stylesheets and document metadata are cached (when caching is enabled),
+ * and revalidated with BlackLab using conditional requests once they expire, see {@link ConditionalCache}.
+ *
+ * Responses for authenticated requests may depend on the user, so they are cached per user,
+ * keyed by a hash of the forwarded credentials (see {@link Keys#AUTH_SOURCE_NAME}), with their own ttl and size ({@link Keys#BLS_CACHE_USER_TTL}).
+ * Responses that BlackLab marks as public (Cache-Control: public) are the same for everyone, those are shared between all users.
+ * </pre>
  */
 public class BlackLabApi {
-	protected final HttpServletRequest request;
-	protected final HttpServletResponse response;
-	protected final GlobalConfig config;
-	
+	/** The caches, created on first use, as their size is configurable. */
+	private static class Caches {
+		final ConditionalCache<CorpusConfig> corpusConfigs = new ConditionalCache<>("blacklab.cache.index", 1_000, true);
+		final ConditionalCache<String> stylesheets = new ConditionalCache<>("blacklab.cache.xslt", 1_000);
+		final ConditionalCache<String> documentMetadata = new ConditionalCache<>("blacklab.cache.docs", 10_000);
+
+		final ConditionalCache<CorpusConfig> userCorpusConfigs;
+		final ConditionalCache<String> userStylesheets;
+		final ConditionalCache<String> userDocumentMetadata;
+
+		Caches(GlobalConfig config) {
+			int maxEntries = Integer.parseInt(config.get(Keys.BLS_CACHE_USER_MAX_ENTRIES));
+			// A corpus config can be several MB (it lists the values of annotations), so these are bounded by their size instead.
+			long maxSize = Long.parseLong(config.get(Keys.BLS_CACHE_USER_INDEX_MAX_SIZE));
+			userCorpusConfigs = new ConditionalCache<>("blacklab.cache.user.index", maxSize, c -> 1024 + 2L * c.getJsonUnescaped().length());
+			userStylesheets = new ConditionalCache<>("blacklab.cache.user.xslt", maxEntries);
+			userDocumentMetadata = new ConditionalCache<>("blacklab.cache.user.docs", maxEntries);
+		}
+	}
+
+	private static Caches caches;
+
+	private static synchronized Caches caches(GlobalConfig config) {
+		if (caches == null) caches = new Caches(config);
+		return caches;
+	}
+
+	/**
+	 * Only used on the thread handling the client request, see {@link #getCorpusConfig(String)}.
+	 * Everything else we need from the client request is read in the constructor, as requests to BlackLab are made from other threads.
+	 */
+	private final HttpServletResponse response;
+	private final GlobalConfig config;
+	/** Of the client request, requests made on a background thread still use it. */
+	private final Deadline deadline;
+	/** Whether the requests are made on behalf of a client, so a missing login can be forwarded to it, see {@link AuthRequest}. */
+	private final boolean forClient;
+	/** The credentials to forward to BlackLab, see {@link Keys#AUTH_SOURCE_NAME}. */
+	private final Optional<String> auth;
+	private final Optional<String> userKey;
+
+	/** Must be called on the thread handling the client request, see {@link Deadline#of(HttpServletRequest)}. */
 	public BlackLabApi(HttpServletRequest clientRequest, HttpServletResponse clientResponse, GlobalConfig config) {
-		this.request = clientRequest;
-		this.response = clientResponse;
+		this(clientRequest, clientResponse, config, Deadline.of(clientRequest));
+	}
+
+	/**
+	 * Must be called on the thread handling the client request, as it reads the credentials from it.
+	 * @param deadline the deadline of the client request.
+	 */
+	public BlackLabApi(HttpServletRequest clientRequest, HttpServletResponse clientResponse, GlobalConfig config, Deadline deadline) {
+		this(clientResponse, config, deadline, clientRequest != null,
+				readRequestParameter(clientRequest, config.get(Keys.AUTH_SOURCE_TYPE), config.get(Keys.AUTH_SOURCE_NAME)));
+	}
+
+	private BlackLabApi(HttpServletResponse response, GlobalConfig config, Deadline deadline, boolean forClient, Optional<String> auth) {
+		this.response = response;
 		this.config = config;
+		this.deadline = deadline;
+		this.forClient = forClient;
+		this.auth = auth;
+		this.userKey = auth.map(BlackLabApi::hash);
 	}
 
-	private AuthRequest authRequest() {
-		var req = new AuthRequest(request, response)
+	/**
+	 * The same api, with its own deadline, e.g. for a part of the client request that gets its own time.
+	 * Doesn't read the client request, so it may be called on any thread.
+	 */
+	public BlackLabApi withDeadline(Deadline deadline) {
+		return new BlackLabApi(response, config, deadline, forClient, auth);
+	}
+
+	private AuthRequest authRequest(Endpoint endpoint) {
+		var req = new AuthRequest(forClient, deadline)
+			.endpoint(endpoint)
 			.query("api", "4"); // compat
 
-		readRequestParameter(request, config.get(Keys.AUTH_SOURCE_TYPE), config.get(Keys.AUTH_SOURCE_NAME))
-				.ifPresent(auth -> setParameter(req, config.get(Keys.AUTH_TARGET_TYPE), config.get(Keys.AUTH_TARGET_NAME), auth));
+		auth.ifPresent(a -> setParameter(req, config.get(Keys.AUTH_TARGET_TYPE), config.get(Keys.AUTH_TARGET_NAME), a));
 
 		return req;
 	}
 
+	/**
+	 * Identifies the user the request is made on behalf of, so per-user cache entries can be kept apart.
+	 * This is a hash of the forwarded credentials, so we don't keep those around in the cache keys.
+	 * @return empty if the request is not authenticated.
+	 */
+	public Optional<String> getUserKey() {
+		return userKey;
+	}
+
+	private static String hash(String s) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8));
+			return HexFormat.of().formatHex(digest);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e); // every jvm has SHA-256
+		}
+	}
+
+	private Duration ttl() {
+		return BlackLabHttpClient.parseMillis(config.get(Keys.BLS_CACHE_TTL));
+	}
+
+	private Duration userTtl() {
+		return BlackLabHttpClient.parseMillis(config.get(Keys.BLS_CACHE_USER_TTL));
+	}
+
+	/**
+	 * Perform the request, conditional on the validators.
+	 * @return the body and validators of the response, or empty if BlackLab answered 304 Not Modified.
+	 */
+	private static Result<Optional<Entry<String>>, QueryException> requestConditional(AuthRequest request, Validators validators) {
+		return validators.apply(request)
+				.requestResponse(true)
+				.flatMap(r -> r.statusCode() == 304
+						? Result.success(Optional.empty())
+						: AuthRequest.decode(r).map(body -> Optional.of(new Entry<>(body, List.of(Validators.of(r.headers()))))));
+	}
+
+	/**
+	 * Get the value from the cache, loading or revalidating it if required.
+	 * Anonymous requests use the shared cache.
+	 * Authenticated requests use a public entry from the shared cache if there is one, and their own entry otherwise.
+	 * When such a request loads an entry that turns out to be public, it is added to the shared cache as well.
+	 */
+	private <V, E extends Exception> Result<V, E> getCached(ConditionalCache<V> shared, ConditionalCache<V> perUser, String key, ConditionalCache.Loader<V, E> loader) {
+		return getCached(shared, perUser, key, Duration.ZERO, Duration.ZERO, loader, loader).map(a -> a.value);
+	}
+
+	/**
+	 * As {@link #getCached(ConditionalCache, ConditionalCache, String, ConditionalCache.Loader)}, but expired entries may be used for a while,
+	 * see {@link ConditionalCache#get(String, Duration, Duration, Duration, ConditionalCache.Loader, ConditionalCache.Loader, Executor)}.
+	 * Only the shared entries are revalidated in the background, per-user entries need the user's request to revalidate them.
+	 * @param refresher loader for the background revalidation, it should not use the current request.
+	 */
+	private <V, E extends Exception> Result<Aged<V>, E> getCached(
+			ConditionalCache<V> shared,
+			ConditionalCache<V> perUser,
+			String key,
+			Duration staleWhileRevalidate,
+			Duration staleIfError,
+			ConditionalCache.Loader<V, E> loader,
+			ConditionalCache.Loader<V, E> refresher
+	) {
+		if (!config.getBool(Keys.CACHE)) return loader.load(Optional.empty()).map(e -> new Aged<>(e.value, Duration.ZERO, false));
+
+		Executor executor = BlackLabHttpClient.getInstance().getExecutor();
+		Optional<String> user = getUserKey();
+		if (user.isEmpty()) return shared.get(key, ttl(), staleWhileRevalidate, staleIfError, loader, refresher, executor);
+
+		Optional<Entry<V>> publicEntry = shared.getFresh(key).filter(Entry::isPublic);
+		if (publicEntry.isPresent()) return Result.success(new Aged<>(publicEntry.get().value, Duration.ZERO, false));
+
+		ConditionalCache.Loader<V, E> publishing = stale -> {
+			long generation = shared.generation();
+			return loader.load(stale).tap(e -> {
+				if (e.isPublic()) shared.put(key, e, ttl(), generation);
+			});
+		};
+		return perUser.get(user.get() + "/" + key, userTtl(), Duration.ZERO, staleIfError, publishing, publishing, executor);
+	}
+
+	/**
+	 * Get the response body from the cache, revalidating it when it has expired.
+	 * Responses that are the same for all users are also kept in the {@link CacheBackend} (if there is one),
+	 * so after a restart they only need to be revalidated instead of downloaded again.
+	 * @param namespace distinguishes the different kinds of responses on disk.
+	 */
+	private Result<String, QueryException> getCached(ConditionalCache<String> shared, ConditionalCache<String> perUser, String namespace, String key, AuthRequest request) {
+		Optional<CacheBackend> disk = getUserKey().isEmpty() ? CacheBackends.getInstance() : Optional.empty();
+		String diskKey = "bls:" + namespace + ":" + key;
+		return getCached(shared, perUser, key, stale -> {
+			Optional<Entry<String>> previous = stale.or(() -> disk.flatMap(d -> d.get(diskKey)).flatMap(BlackLabApi::decodeEntry));
+			return requestConditional(request, previous.map(e -> e.getValidators(0)).orElse(Validators.NONE))
+					.map(fresh -> {
+						fresh.ifPresent(e -> disk.ifPresent(d -> d.put(diskKey, encodeEntry(e), diskTtl())));
+						return fresh.orElseGet(previous::get); // 304 - our copy is still up to date.
+					});
+		});
+	}
+
+	private Duration diskTtl() {
+		return BlackLabHttpClient.parseMillis(config.get(Keys.CACHE_DISK_TTL));
+	}
+
+	private static byte[] encodeEntry(Entry<String> entry) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			Validators v = entry.getValidators(0);
+			out.writeUTF(v.etag.orElse(""));
+			out.writeUTF(v.lastModified.orElse(""));
+			out.writeBoolean(v.isPublic);
+			out.write(entry.value.getBytes(StandardCharsets.UTF_8));
+			out.flush();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e); // can't happen, writing to memory.
+		}
+	}
+
+	private static Optional<Entry<String>> decodeEntry(byte[] bytes) {
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+			Optional<String> etag = Optional.of(in.readUTF()).filter(s -> !s.isEmpty());
+			Optional<String> lastModified = Optional.of(in.readUTF()).filter(s -> !s.isEmpty());
+			boolean isPublic = in.readBoolean();
+			String body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+			return Optional.of(new Entry<>(body, List.of(new Validators(etag, lastModified, isPublic))));
+		} catch (IOException e) {
+			return Optional.empty();
+		}
+	}
+
 	public Result<String, QueryException> getDocumentMetadata(String corpus, String documentId) {
-		return authRequest()
+		Caches c = caches(config);
+		return getCached(c.documentMetadata, c.userDocumentMetadata, "docs", corpus + "/" + documentId, documentMetadataRequest(corpus, documentId));
+	}
+
+	/** Asynchronous version of {@link #getDocumentMetadata(String, String)}. */
+	public CompletableFuture<Result<String, QueryException>> getDocumentMetadataAsync(String corpus, String documentId) {
+		return CompletableFuture.supplyAsync(() -> getDocumentMetadata(corpus, documentId), BlackLabHttpClient.getInstance().getExecutor());
+	}
+
+	private AuthRequest documentMetadataRequest(String corpus, String documentId) {
+		return authRequest(Endpoint.DOCS)
 				.url(config.get(Keys.BLS_URL_ON_SERVER), corpus, "docs", documentId)
-				.query("outputformat", "xml")
-				.request(true);
+				.query("outputformat", "xml");
 	}
 
+	/**
+	 * Get the corpus config.
+	 * Computing it can be expensive for BlackLab (the values of all annotations are listed), so once it expires, the cached copy is still used
+	 * while it is revalidated in the background ({@link Keys#BLS_CACHE_STALE_WHILE_REVALIDATE}), or when BlackLab can't be reached ({@link Keys#BLS_CACHE_STALE_IF_ERROR}).
+	 * When a stale copy is used, its age is set in the Age header of the response, so this must be called on the thread handling the client request.
+	 */
 	public Result<CorpusConfig, Exception> getCorpusConfig(String corpus) {
-		return authRequest()
+		Caches c = caches(config);
+		BlackLabApi background = new BlackLabApi(null, null, config);
+		Optional<CacheBackend> backend = getUserKey().isEmpty() ? CacheBackends.getInstance() : Optional.empty();
+		return getCached(c.corpusConfigs, c.userCorpusConfigs, corpus,
+				BlackLabHttpClient.parseMillis(config.get(Keys.BLS_CACHE_STALE_WHILE_REVALIDATE)),
+				BlackLabHttpClient.parseMillis(config.get(Keys.BLS_CACHE_STALE_IF_ERROR)),
+				stale -> loadCorpusConfig(corpus, stale, backend),
+				stale -> background.loadCorpusConfig(corpus, stale, backend))
+			.tap(a -> {
+				if (a.stale && response != null && !response.isCommitted()) response.setHeader("Age", Long.toString(a.age.toSeconds()));
+			})
+			.map(a -> a.value);
+	}
+
+	/**
+	 * Whether BlackLab marked the corpus config as public (the same for all users), so clients may share it too.
+	 * Only known once the config is in the cache.
+	 */
+	public boolean isCorpusConfigPublic(String corpus) {
+		return caches(config).corpusConfigs.getFresh(corpus).map(Entry::isPublic).orElse(false);
+	}
+
+	/**
+	 * Load the corpus config, or revalidate the stale one.
+	 * The config consists of two responses: the xml (which determines which annotations need their values listed), and the json with those values.
+	 * Both are revalidated, if neither has changed, the stale config is returned as-is.
+	 * When there is no stale config, but the responses are in the {@link CacheBackend} (e.g. stored by another server), those are revalidated instead.
+	 * @param backend where to keep the responses, should be empty for authenticated requests.
+	 */
+	private Result<Entry<CorpusConfig>, Exception> loadCorpusConfig(String corpus, Optional<Entry<CorpusConfig>> cached, Optional<CacheBackend> backend) {
+		String xmlKey = "bls:index:" + corpus + ":xml";
+		String jsonKey = "bls:index:" + corpus + ":json";
+		Optional<Entry<CorpusConfig>> stale = cached.or(() -> backend.flatMap(b -> b.get(xmlKey).flatMap(BlackLabApi::decodeEntry)
+				.flatMap(x -> b.get(jsonKey).flatMap(BlackLabApi::decodeEntry)
+				.flatMap(j -> Result.attempt(() -> new Entry<>(new CorpusConfig(corpus, x.value, j.value, List.of(x.getValidators(0), j.getValidators(0))), List.of(x.getValidators(0), j.getValidators(0)))).getResult()))));
+
+		Result<Optional<Entry<String>>, QueryException> xml = requestConditional(indexMetadataRequest(corpus, "xml"), stale.map(e -> e.getValidators(0)).orElse(Validators.NONE));
+		if (xml.matches(Optional::isEmpty)) {
+			// The xml is unchanged, and so are the listvalues.
+			Result<Optional<Entry<String>>, QueryException> json = requestConditional(
+					indexMetadataRequest(corpus, "json").query("listvalues", stale.get().value.getListValues()),
+					stale.get().getValidators(1));
+			if (json.hasError()) return Result.error(json.getError().get());
+			if (json.matches(Optional::isEmpty)) return Result.success(stale.get());
+			// Only the json changed, but we no longer have the xml, retrieve it again.
+			xml = requestConditional(indexMetadataRequest(corpus, "xml"), Validators.NONE);
+		}
+
+		return xml
+				.mapError(e -> (Exception) e)
+				.flatMapWithErrorHandling(x -> {
+					Entry<String> xmlEntry = x.orElseThrow();
+					String listValues = new CorpusConfig(corpus, xmlEntry.value, "").getListValues();
+					return requestConditional(indexMetadataRequest(corpus, "json").query("listvalues", listValues), Validators.NONE)
+							.mapWithErrorHandling(j -> {
+								Entry<String> jsonEntry = j.orElseThrow();
+								backend.ifPresent(b -> {
+									b.put(xmlKey, encodeEntry(xmlEntry), diskTtl());
+									b.put(jsonKey, encodeEntry(jsonEntry), diskTtl());
+								});
+								List<Validators> validators = List.of(xmlEntry.getValidators(0), jsonEntry.getValidators(0));
+								return new Entry<>(new CorpusConfig(corpus, xmlEntry.value, jsonEntry.value, validators), validators);
+							});
+				});
+	}
+
+	private AuthRequest indexMetadataRequest(String corpus, String outputFormat) {
+		return authRequest(Endpoint.INDEX_METADATA)
 				.url(config.get(Keys.BLS_URL_ON_SERVER), corpus)
-				.query("outputformat", "xml")
+				.query("outputformat", outputFormat);
+	}
+
+	/** The ids of the corpora in BlackLab that are visible to the user making this request. */
+	public Result<List<String>, QueryException> getCorpusIds() {
+		return getCorpusVersions().map(versions -> new ArrayList<>(versions.keySet()));
+	}
+
+	/**
+	 * The corpora in BlackLab that are visible to the user making this request, along with their version:
+	 * when it was last modified and its size, which change when the corpus is (re)indexed.
+	 */
+	public Result<Map<String, String>, QueryException> getCorpusVersions() {
+		return authRequest(Endpoint.INDEX_METADATA)
+				.url(config.get(Keys.BLS_URL_ON_SERVER))
+				.query("outputformat", "json")
 				.request(true)
-				.flatMapWithErrorHandling(xml ->
-						authRequest()
-							.url(config.get(Keys.BLS_URL_ON_SERVER), corpus)
-							.query("outputformat", "json")
-							.query("listvalues", new CorpusConfig(corpus, xml, "").getListValues())
-							.request(true)
-							.mapWithErrorHandling(json -> new CorpusConfig(corpus, xml, json))
-				);
+				.mapWithErrorHandling(json -> {
+					JsonObject root = JsonParser.parseString(json).getAsJsonObject();
+					// "corpora" in api v5, "indices" before that.
+					JsonObject corpora = root.has("corpora") ? root.getAsJsonObject("corpora") : root.getAsJsonObject("indices");
+					Map<String, String> versions = new LinkedHashMap<>();
+					corpora.entrySet().forEach(c -> {
+						JsonObject corpus = c.getValue().getAsJsonObject();
+						versions.put(c.getKey(), Stream.of("timeModified", "tokenCount", "documentCount")
+								.map(field -> corpus.has(field) ? corpus.get(field).getAsString() : "")
+								.collect(Collectors.joining("/")));
+					});
+					return versions;
+				})
+				.mapError(e -> e instanceof QueryException ? (QueryException) e : QueryException.wrap(e, "Unexpected response listing corpora"));
+	}
+
+	/** Remove everything about the corpus from the caches, e.g. because it was indexed again. */
+	public static void invalidateCorpus(String corpus) {
+		Caches c;
+		synchronized (BlackLabApi.class) {
+			c = caches;
+		}
+		if (c == null) return;
+
+		// Per-user keys are prefixed with the user's hash, which doesn't contain a '/'.
+		c.corpusConfigs.invalidateIf(corpus::equals);
+		c.userCorpusConfigs.invalidateIf(k -> k.substring(k.indexOf('/') + 1).equals(corpus));
+		c.documentMetadata.invalidateIf(k -> k.startsWith(corpus + "/"));
+		c.userDocumentMetadata.invalidateIf(k -> k.substring(k.indexOf('/') + 1).startsWith(corpus + "/"));
 	}
 
 	public Result<String, QueryException> getStylesheet(String formatName) {
-		return authRequest()
-				.url(config.get(Keys.BLS_URL_ON_SERVER), "input-formats", formatName, "xslt")
-				.request(true);
+		Caches c = caches(config);
+		return getCached(c.stylesheets, c.userStylesheets, "xslt", formatName, authRequest(Endpoint.XSLT)
+				.url(config.get(Keys.BLS_URL_ON_SERVER), "input-formats", formatName, "xslt"));
 	}
 
 	public Result<String, QueryException> getDocumentContents(
@@ -73,7 +422,35 @@ public class BlackLabApi {
 			Optional<String> pattgapdata,
 			Optional<Integer> pageStart,
 			Optional<Integer> pageEnd) {
-		return authRequest()
+		return documentContentsRequest(corpus, docId, field, searchfield, blacklabQuery, pattgapdata, pageStart, pageEnd).request(true);
+	}
+
+	/**
+	 * Streaming version of {@link #getDocumentContents(String, String, Optional, Optional, Optional, Optional, Optional, Optional)}, the contents are not read into memory.
+	 * The stream MUST be closed.
+	 */
+	public CompletableFuture<Result<InputStream, QueryException>> getDocumentContentsStreamAsync(
+			String corpus,
+			String docId,
+			Optional<String> field,
+			Optional<String> searchfield,
+			Optional<String> blacklabQuery,
+			Optional<String> pattgapdata,
+			Optional<Integer> pageStart,
+			Optional<Integer> pageEnd) {
+		return documentContentsRequest(corpus, docId, field, searchfield, blacklabQuery, pattgapdata, pageStart, pageEnd).streamAsync(true);
+	}
+
+	private AuthRequest documentContentsRequest(
+			String corpus,
+			String docId,
+			Optional<String> field,
+			Optional<String> searchfield,
+			Optional<String> blacklabQuery,
+			Optional<String> pattgapdata,
+			Optional<Integer> pageStart,
+			Optional<Integer> pageEnd) {
+		return authRequest(Endpoint.CONTENTS)
 				.url(config.get(Keys.BLS_URL_ON_SERVER), corpus, "docs", docId, "contents")
 				.query("field", field)
 				.query("searchfield", searchfield)
@@ -81,12 +458,25 @@ public class BlackLabApi {
 				.query("pattgapdata", pattgapdata)
 				.query("wordstart", pageStart.map(Object::toString))
 				.query("wordend", pageEnd.map(Object::toString))
-				.query("escapexmlfragments", "false")
-				.request(true);
+				.query("escapexmlfragments", "false");
+	}
+
+	/**
+	 * Wait for the future to complete and return its value.
+	 * Exceptions that escaped the future (such as {@link ReturnToClientException}) are rethrown as-is.
+	 */
+	public static <T> T await(CompletableFuture<T> future) {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw e;
+		}
 	}
 
 	private static boolean warned = false;
 	public static Optional<String> readRequestParameter(HttpServletRequest request, String type, String name) {
+		if (request == null) return Optional.empty(); // not on behalf of a client, e.g. during warm-up.
 		return Optional
 			.ofNullable(type)
 			.filter(t -> name != null)
@@ -0,0 +1,647 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.net.ssl.SSLSession;
+
+import jakarta.servlet.http.HttpServletResponse;
+
+import nl.inl.corpuswebsite.utils.GlobalConfig.Keys;
+
+/**
+ * <pre>
+ * The shared http engine for all requests to BlackLab-server.
+ *
+ * A single {@link HttpClient} is used for the entire application, so connections are kept alive and reused across requests.
+ * HTTP/2 is negotiated when BlackLab (or the proxy in front of it) supports it, otherwise HTTP/1.1 is used.
+ * The number of concurrent exchanges is capped (see {@link Keys#BLS_MAX_CONNECTIONS}), requests over the limit wait for a free slot.
+ * A streamed response holds on to its slot until its body is closed.
+ * Responses may be compressed by BlackLab (see {@link Keys#BLS_COMPRESSION}), they're decompressed while they are read.
+ *
+ * Identical requests (same url and credentials) that are made at the same time share a single exchange, see {@link Keys#BLS_COALESCE}.
+ * This protects BlackLab when many users open the same (e.g. recently linked) document at the same time.
+ * Streamed responses (document contents) are never shared, that would mean holding them in memory.
+ *
+ * Timeouts are configured per class of endpoint, see {@link Endpoint}.
+ * The connect timeout is shared by all endpoints, as connections are pooled and reused across endpoints.
+ * Timeouts are further limited by the {@link Deadline} of the client request.
+ *
+ * Every class of endpoint has its own {@link CircuitBreaker}, when BlackLab keeps failing, requests fail fast instead of piling up.
+ * </pre>
+ */
+public class BlackLabHttpClient {
+    private static final Logger logger = Logger.getLogger(BlackLabHttpClient.class.getName());
+
+    /** The different kinds of requests we make to BlackLab, each can have its own read timeout. */
+    public enum Endpoint {
+        /** Index metadata (/corpus) */
+        INDEX_METADATA(Keys.BLS_READ_TIMEOUT_INDEX),
+        /** Document metadata (/corpus/docs/id) */
+        DOCS(Keys.BLS_READ_TIMEOUT_DOCS),
+        /** Document contents (/corpus/docs/id/contents) */
+        CONTENTS(Keys.BLS_READ_TIMEOUT_CONTENTS),
+        /** Autogenerated stylesheets (/input-formats/format/xslt) */
+        XSLT(Keys.BLS_READ_TIMEOUT_XSLT),
+        /** Everything else, uses the default read timeout. */
+        OTHER(null);
+
+        private final Keys readTimeoutKey;
+
+        Endpoint(Keys readTimeoutKey) {
+            this.readTimeoutKey = readTimeoutKey;
+        }
+
+        /** The read timeout for this endpoint, falling back to the default read timeout when not configured. */
+        public Duration getReadTimeout(GlobalConfig config) {
+            return Optional.ofNullable(readTimeoutKey)
+                    .map(config::get)
+                    .or(() -> Optional.ofNullable(config.get(Keys.BLS_READ_TIMEOUT)))
+                    .map(BlackLabHttpClient::parseMillis)
+                    .orElse(Duration.ofSeconds(60));
+        }
+    }
+
+    private static BlackLabHttpClient instance;
+
+    private final GlobalConfig config;
+    private final ExecutorService executor;
+    private final HttpClient client;
+    /** Closes streamed bodies that are still being read when the client request runs out of time, see {@link #stream(HttpRequest.Builder, Endpoint, Deadline)}. */
+    private final ScheduledExecutorService watchdog;
+
+    /** Caps the number of concurrent exchanges with BlackLab. */
+    private final Semaphore slots;
+    private final int maxConnections;
+
+    /** When set, identical concurrent GET requests share a single exchange. */
+    private final boolean coalesce;
+    private final SingleFlight<String, Result<HttpResponse<byte[]>, QueryException>> inFlight = new SingleFlight<>();
+
+    /** Caps the number of threads waiting for a slot. */
+    private final int maxWaiting;
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    private final Map<Endpoint, CircuitBreaker> breakers = new EnumMap<>(Endpoint.class);
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /** When set, BlackLab may compress its responses. */
+    private final boolean compression;
+    private final LongAdder wireBytes = new LongAdder();
+    private final LongAdder decodedBytes = new LongAdder();
+    private final LongAdder decompressionNanos = new LongAdder();
+    private final LongAdder compressedResponses = new LongAdder();
+
+    private BlackLabHttpClient(GlobalConfig config) {
+        this.config = config;
+        this.maxConnections = Math.max(1, parseInt(config.get(Keys.BLS_MAX_CONNECTIONS), 64));
+        this.slots = new Semaphore(maxConnections, true);
+        this.maxWaiting = Math.max(0, parseInt(config.get(Keys.BLS_MAX_WAITING), 64));
+        this.coalesce = config.getBool(Keys.BLS_COALESCE);
+        this.compression = config.getBool(Keys.BLS_COMPRESSION);
+        int breakerThreshold = parseInt(config.get(Keys.BLS_BREAKER_FAILURES), 5);
+        long breakerOpen = parseMillis(config.get(Keys.BLS_BREAKER_OPEN)).toMillis();
+        for (Endpoint e : Endpoint.values()) breakers.put(e, new CircuitBreaker(e.name().toLowerCase(), breakerThreshold, breakerOpen));
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "blacklab-io");
+            t.setDaemon(true);
+            return t;
+        });
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "blacklab-watchdog");
+            t.setDaemon(true);
+            return t;
+        });
+        this.client = HttpClient.newBuilder()
+                .version(config.getBool(Keys.BLS_HTTP2) ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+                .connectTimeout(parseMillis(config.get(Keys.BLS_CONNECT_TIMEOUT)))
+                // We follow redirects ourselves, so we can copy the method, headers and cookies. See AuthRequest.
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .executor(executor)
+                .build();
+
+        Metrics.register("blacklab.slots", this::getMetrics);
+        Metrics.register("blacklab.coalescing", inFlight::getMetrics);
+        Metrics.register("blacklab.breakers", this::getBreakerMetrics);
+        Metrics.register("blacklab.transfer", this::getTransferMetrics);
+    }
+
+    /** Get the shared client, created on first use from the global config. */
+    public static synchronized BlackLabHttpClient getInstance() {
+        if (instance == null) instance = new BlackLabHttpClient(GlobalConfig.getInstance());
+        return instance;
+    }
+
+    /** Release the threads held by the shared client (if it was ever created). */
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            logger.info("Shutting down BlackLab http client");
+            instance.executor.shutdownNow();
+            instance.watchdog.shutdownNow();
+            Metrics.unregister("blacklab.slots");
+            Metrics.unregister("blacklab.coalescing");
+            Metrics.unregister("blacklab.breakers");
+            Metrics.unregister("blacklab.transfer");
+            instance = null;
+        }
+    }
+
+    public GlobalConfig getConfig() {
+        return config;
+    }
+
+    /** Executor for (blocking) work related to BlackLab requests, such as asynchronous requests and processing their results. */
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Perform the request, waiting for a free slot if the maximum number of concurrent exchanges has been reached.
+     * The read timeout for the endpoint is applied to the request, limited by the deadline of the client request.
+     *
+     * @param request the request to perform, without a timeout set.
+     * @param endpoint what kind of request this is, determines the timeout.
+     * @param deadline of the client request we're making this request for.
+     * @return the response with the body decoded as UTF-8.
+     * @throws QueryException when the request could not be completed (connection refused, timeout, interrupted, circuit open, etc.)
+     */
+    public HttpResponse<String> send(HttpRequest.Builder request, Endpoint endpoint, Deadline deadline) throws QueryException {
+        HttpRequest r = prepare(request, endpoint, deadline);
+        HttpResponse<byte[]> response = isCoalesced(r, endpoint) ? sendShared(r, endpoint) : readFully(exchange(r, endpoint));
+        return new MappedResponse<>(response, response.headers(), new String(response.body(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Same as {@link #send(HttpRequest.Builder, Endpoint, Deadline)}, but returns as soon as the response headers have been received.
+     * The body is read (and decompressed) from the connection while it is consumed, so it is never held in memory in its entirety.
+     * NOTE: the slot is only released when the body is closed, callers MUST close it.
+     * The read timeout applies to receiving the response headers, reading the body is limited by the deadline:
+     * once it passes, the body is closed, and reads fail.
+     * Streamed requests are never coalesced.
+     */
+    public HttpResponse<InputStream> stream(HttpRequest.Builder request, Endpoint endpoint, Deadline deadline) throws QueryException {
+        HttpResponse<InputStream> response = decode(exchange(prepare(request, endpoint, deadline), endpoint));
+        return deadline.remaining().map(left -> watch(response, left)).orElse(response);
+    }
+
+    /**
+     * Close the body once the time is up, so a BlackLab that stalls halfway through the body can't hold on to the reading thread (and the slot) indefinitely.
+     * A read that is blocked at that moment fails with an IOException.
+     */
+    private HttpResponse<InputStream> watch(HttpResponse<InputStream> response, Duration left) {
+        InputStream body = response.body();
+        AtomicBoolean expired = new AtomicBoolean();
+        ScheduledFuture<?> timer = watchdog.schedule(() -> {
+            expired.set(true);
+            try {
+                body.close();
+            } catch (IOException e) {
+                // ignore, the reader gets an error either way.
+            }
+        }, left.toNanos(), TimeUnit.NANOSECONDS);
+
+        return new MappedResponse<>(response, response.headers(), new FilterInputStream(body) {
+            @Override
+            public int read() throws IOException {
+                try {
+                    return super.read();
+                } catch (IOException e) {
+                    throw expired.get() ? timedOut(response, e) : e;
+                }
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                try {
+                    return super.read(b, off, len);
+                } catch (IOException e) {
+                    throw expired.get() ? timedOut(response, e) : e;
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                timer.cancel(false);
+                super.close();
+            }
+        });
+    }
+
+    private static IOException timedOut(HttpResponse<?> response, IOException cause) {
+        HttpTimeoutException e = new HttpTimeoutException("Request took too long, gave up reading the response from " + response.uri());
+        e.initCause(cause);
+        return e;
+    }
+
+    private HttpRequest prepare(HttpRequest.Builder request, Endpoint endpoint, Deadline deadline) throws QueryException {
+        if (compression) request.setHeader("Accept-Encoding", "gzip, deflate");
+        return request.timeout(deadline.limit(endpoint.getReadTimeout(config))).build();
+    }
+
+    /**
+     * Perform the exchange, guarded by the circuit breaker of the endpoint and the connection limit.
+     * The body is not decoded yet. The slot is released when the body is closed, callers MUST close it.
+     * An error while reading the body counts as a failure of the endpoint, in addition to the outcome of receiving the headers.
+     */
+    private HttpResponse<InputStream> exchange(HttpRequest r, Endpoint endpoint) throws QueryException {
+        CircuitBreaker breaker = breakers.get(endpoint);
+        breaker.acquire();
+
+        Slot slot;
+        try {
+            slot = acquire(r, r.timeout().orElse(endpoint.getReadTimeout(config)));
+        } catch (QueryException e) {
+            breaker.cancel();
+            throw e;
+        }
+
+        try {
+            HttpResponse<InputStream> response = client.send(r, info -> HttpResponse.BodySubscribers.mapping(
+                    HttpResponse.BodySubscribers.ofInputStream(),
+                    body -> new FilterInputStream(body) {
+                        private final AtomicBoolean failed = new AtomicBoolean();
+
+                        @Override
+                        public int read() throws IOException {
+                            try {
+                                return super.read();
+                            } catch (IOException e) {
+                                if (!failed.getAndSet(true)) breaker.failure();
+                                throw e;
+                            }
+                        }
+
+                        @Override
+                        public int read(byte[] b, int off, int len) throws IOException {
+                            try {
+                                return super.read(b, off, len);
+                            } catch (IOException e) {
+                                if (!failed.getAndSet(true)) breaker.failure();
+                                throw e;
+                            }
+                        }
+
+                        @Override
+                        public void close() throws IOException {
+                            try {
+                                super.close();
+                            } finally {
+                                slot.release();
+                            }
+                        }
+                    }));
+            if (isBlackLabUnavailable(response.statusCode())) breaker.failure();
+            else breaker.success();
+            return response;
+        } catch (IOException | InterruptedException e) {
+            slot.release();
+            // A timeout shorter than the endpoint's (the client request had little time left) says nothing about BlackLab.
+            boolean shortened = r.timeout().filter(t -> t.compareTo(endpoint.getReadTimeout(config)) < 0).isPresent();
+            if (e instanceof HttpTimeoutException && shortened) breaker.cancel();
+            else breaker.failure();
+            throw failed(r, e);
+        } catch (RuntimeException | Error e) {
+            slot.release();
+            breaker.cancel();
+            throw e;
+        }
+    }
+
+    /**
+     * Wrap the body so it is decompressed while it is read, if BlackLab compressed it.
+     * The returned response no longer has the Content-Encoding and Content-Length headers, as they don't apply to the decoded body.
+     */
+    private HttpResponse<InputStream> decode(HttpResponse<InputStream> response) {
+        String encoding = response.headers().firstValue("Content-Encoding").orElse("identity").trim().toLowerCase();
+        boolean compressed = hasBody(response) && (encoding.equals("gzip") || encoding.equals("x-gzip") || encoding.equals("deflate"));
+        MeteredInputStream wire = new MeteredInputStream(response.body());
+        InputStream decoded = compressed ? new DecodingInputStream(wire, encoding) : wire;
+        HttpHeaders headers = HttpHeaders.of(response.headers().map(), (k, v) -> !k.equalsIgnoreCase("Content-Encoding") && !k.equalsIgnoreCase("Content-Length"));
+        return new MappedResponse<>(response, headers, new TransferStream(decoded, wire, compressed));
+    }
+
+    /** Responses to HEAD requests, and 1xx, 204 and 304 responses never have a body, even when they have a Content-Encoding. */
+    private static boolean hasBody(HttpResponse<?> response) {
+        int status = response.statusCode();
+        return !response.request().method().equals("HEAD") && status >= 200 && status != 204 && status != 304;
+    }
+
+    /**
+     * Decompresses a gzip or deflate body.
+     * The decompressor is created on the first read, as it reads the header right away: an empty body is then just empty.
+     * Deflate should be zlib-wrapped, but some servers send raw deflate data, which is recognized by the missing zlib header.
+     */
+    private static class DecodingInputStream extends InputStream {
+        private final PushbackInputStream in;
+        private final String encoding;
+        private InputStream decoded;
+        private Inflater inflater;
+
+        DecodingInputStream(InputStream in, String encoding) {
+            this.in = new PushbackInputStream(in, 2);
+            this.encoding = encoding;
+        }
+
+        private InputStream decoded() throws IOException {
+            if (decoded != null) return decoded;
+
+            int b0 = in.read();
+            if (b0 == -1) return decoded = InputStream.nullInputStream();
+            int b1 = in.read();
+            if (b1 != -1) in.unread(b1);
+            in.unread(b0);
+
+            if (!encoding.equals("deflate")) return decoded = new GZIPInputStream(in, 8192);
+            boolean zlib = b1 != -1 && (b0 & 0x0F) == 8 && ((b0 << 8) | b1) % 31 == 0;
+            inflater = new Inflater(!zlib);
+            return decoded = new InflaterInputStream(in, inflater, 8192);
+        }
+
+        @Override
+        public int read() throws IOException {
+            return decoded().read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return decoded().read(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                (decoded != null ? decoded : in).close();
+            } finally {
+                // InflaterInputStream doesn't end an Inflater it didn't create itself.
+                if (inflater != null) inflater.end();
+            }
+        }
+    }
+
+    /** Read the entire (decoded) body, releasing the slot. */
+    private HttpResponse<byte[]> readFully(HttpResponse<InputStream> response) throws QueryException {
+        HttpResponse<InputStream> decoded = decode(response);
+        try (InputStream in = decoded.body()) {
+            return new MappedResponse<>(decoded, decoded.headers(), in.readAllBytes());
+        } catch (IOException e) {
+            throw failed(response.request(), e);
+        }
+    }
+
+    /** Whether the status code means BlackLab (or the proxy in front of it) is down or overloaded. */
+    private static boolean isBlackLabUnavailable(int statusCode) {
+        return statusCode == HttpServletResponse.SC_BAD_GATEWAY
+                || statusCode == HttpServletResponse.SC_SERVICE_UNAVAILABLE
+                || statusCode == HttpServletResponse.SC_GATEWAY_TIMEOUT;
+    }
+
+    /** Document contents are excluded: they're large and streamed, and every waiter would inherit the timeout of the first request. */
+    private boolean isCoalesced(HttpRequest r, Endpoint endpoint) {
+        return coalesce && endpoint != Endpoint.CONTENTS && (r.method().equals("GET") || r.method().equals("HEAD"));
+    }
+
+    /**
+     * Perform the request, or wait for the identical request already in progress.
+     * The key includes the headers, so requests on behalf of different users (credentials, cookies) are never shared.
+     */
+    private HttpResponse<byte[]> sendShared(HttpRequest r, Endpoint endpoint) throws QueryException {
+        String key = r.method() + " " + r.uri() + " " + r.headers().map();
+        return inFlight.run(key, () -> {
+            try {
+                return Result.success(readFully(exchange(r, endpoint)));
+            } catch (QueryException e) {
+                return Result.error(e);
+            }
+        }).getOrThrow();
+    }
+
+    /** A response with a different body (and headers), e.g. to give every caller of a shared request its own copy of the body. */
+    private static class MappedResponse<T> implements HttpResponse<T> {
+        private final HttpResponse<?> response;
+        private final HttpHeaders headers;
+        private final T body;
+
+        MappedResponse(HttpResponse<?> response, HttpHeaders headers, T body) {
+            this.response = response;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        @Override public int statusCode() { return response.statusCode(); }
+        @Override public HttpRequest request() { return response.request(); }
+        @Override public Optional<HttpResponse<T>> previousResponse() { return Optional.empty(); }
+        @Override public HttpHeaders headers() { return headers; }
+        @Override public T body() { return body; }
+        @Override public Optional<SSLSession> sslSession() { return response.sslSession(); }
+        @Override public URI uri() { return response.uri(); }
+        @Override public HttpClient.Version version() { return response.version(); }
+    }
+
+    /** Counts the bytes read through it, and the time spent reading them. */
+    private static class MeteredInputStream extends FilterInputStream {
+        long bytes = 0;
+        long nanos = 0;
+
+        MeteredInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = System.nanoTime();
+            int b = super.read();
+            nanos += System.nanoTime() - start;
+            if (b != -1) ++bytes;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            int n = super.read(b, off, len);
+            nanos += System.nanoTime() - start;
+            if (n > 0) bytes += n;
+            return n;
+        }
+    }
+
+    /**
+     * The decoded body of a response, records the transfer statistics when closed.
+     * The time spent decompressing is the time spent reading the decoded stream, minus the time spent waiting for the network.
+     */
+    private class TransferStream extends MeteredInputStream {
+        private final MeteredInputStream wire;
+        private final boolean compressed;
+        private boolean closed = false;
+
+        TransferStream(InputStream decoded, MeteredInputStream wire, boolean compressed) {
+            super(decoded);
+            this.wire = wire;
+            this.compressed = compressed;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (!closed) {
+                    closed = true;
+                    wireBytes.add(wire.bytes);
+                    decodedBytes.add(bytes);
+                    if (compressed) {
+                        compressedResponses.increment();
+                        decompressionNanos.add(Math.max(0, nanos - wire.nanos));
+                    }
+                }
+            }
+        }
+    }
+
+    /** A permit to perform an exchange with BlackLab. Releasing more than once is a no-op. */
+    private class Slot {
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                active.decrementAndGet();
+                slots.release();
+            }
+        }
+    }
+
+    /**
+     * Wait for a free slot.
+     * Only a limited number of threads may wait (see {@link Keys#BLS_MAX_WAITING}), so requests to BlackLab can't occupy all threads of the servlet container.
+     * @param maxWait how long to wait at most.
+     * @throws QueryException (503) when there are too many waiting threads, or no slot became available in time.
+     */
+    private Slot acquire(HttpRequest r, Duration maxWait) throws QueryException {
+        requests.increment();
+        if (!slots.tryAcquire()) {
+            try {
+                if (waiting.incrementAndGet() > maxWaiting) {
+                    rejected.increment();
+                    throw new QueryException(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many concurrent requests to BlackLab, please try again later.");
+                }
+                if (!slots.tryAcquire(maxWait.toNanos(), TimeUnit.NANOSECONDS)) {
+                    rejected.increment();
+                    throw new QueryException(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Timed out waiting for a connection to BlackLab, please try again later.");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failures.increment();
+                throw new QueryException(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Interrupted while waiting for a connection to " + r.uri());
+            } finally {
+                waiting.decrementAndGet();
+            }
+        }
+        active.incrementAndGet();
+        return new Slot();
+    }
+
+    private QueryException failed(HttpRequest r, Exception e) {
+        failures.increment();
+        if (e instanceof HttpTimeoutException) {
+            return new QueryException(HttpServletResponse.SC_GATEWAY_TIMEOUT, "Timed out waiting for BlackLab at " + r.uri() + ": " + e.getMessage());
+        } else if (e instanceof InterruptedException) {
+            Thread.currentThread().interrupt();
+            return new QueryException(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Interrupted while waiting for " + r.uri());
+        }
+        return QueryException.wrap(e, "Error connecting to url " + r.uri());
+    }
+
+    /**
+     * These count slots (see {@link #slots}), not connections: the HttpClient manages its own connection pool,
+     * and several exchanges may be multiplexed over a single connection.
+     */
+    private Map<String, Object> getMetrics() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("slots", maxConnections);
+        m.put("slotsInUse", active.get());
+        m.put("slotsFree", slots.availablePermits());
+        m.put("waitingForSlot", waiting.get());
+        m.put("maxWaiting", maxWaiting);
+        m.put("requests", requests.sum());
+        m.put("failures", failures.sum());
+        m.put("rejected", rejected.sum());
+        return m;
+    }
+
+    private Map<String, Object> getTransferMetrics() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("compression", compression);
+        m.put("wireBytes", wireBytes.sum());
+        m.put("decodedBytes", decodedBytes.sum());
+        m.put("compressedResponses", compressedResponses.sum());
+        m.put("decompressionMillis", TimeUnit.NANOSECONDS.toMillis(decompressionNanos.sum()));
+        return m;
+    }
+
+    private Map<String, Object> getBreakerMetrics() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        breakers.forEach((endpoint, breaker) -> m.put(endpoint.name(), breaker.getMetrics()));
+        return m;
+    }
+
+    /** Parse a number setting, invalid values are logged and the fallback is used. */
+    public static int parseInt(String value, int fallback) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NullPointerException | NumberFormatException e) {
+            logger.warning("Invalid number value '" + value + "', using " + fallback);
+            return fallback;
+        }
+    }
+
+    /** Parse a timeout setting in milliseconds. It is at least 1ms, invalid values are logged and 60 seconds is used. */
+    public static Duration parseMillis(String value) {
+        Duration d = parseMillis(value, Duration.ofSeconds(60));
+        return d.isZero() ? Duration.ofMillis(1) : d;
+    }
+
+    /**
+     * Parse a duration setting in milliseconds, for settings where 0 means disabled or no limit.
+     * Negative values count as 0, invalid values are logged and the fallback is used.
+     */
+    public static Duration parseMillis(String value, Duration fallback) {
+        try {
+            return Duration.ofMillis(Math.max(0, Long.parseLong(value.trim())));
+        } catch (NullPointerException | NumberFormatException e) {
+            logger.warning("Invalid duration value '" + value + "', using " + fallback.toMillis() + "ms");
+            return fallback;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+import nl.inl.corpuswebsite.utils.Result.ThrowableFunction;
+
+/**
+ * <pre>
+ * Bounded in-memory cache.
+ *
+ * Reads don't take any lock. Values are loaded once per key: concurrent misses for the same key wait for a single load,
+ * loads of different keys don't block each other. Exceptions thrown by the loader are not cached.
+ *
+ * Every value has a weight (1 unless a weigher is given). When the total weight exceeds the maximum,
+ * expired entries are removed first, then the least recently used ones, until the cache is at 90% of its maximum,
+ * so eviction doesn't run on every insert once the cache is full.
+ * Entries optionally expire a fixed time after they were loaded.
+ *
+ * A load that was in progress when (part of) the cache was invalidated returns its value, but doesn't store it,
+ * as it may have been loaded from the data that was invalidated. See {@link #generation()}.
+ * </pre>
+ *
+ * @param <K> the key, should implement equals and hashCode.
+ * @param <V> the value, should be safe to share between threads.
+ */
+public class Cache<K, V> {
+    private static class Node<V> {
+        final V value;
+        final long weight;
+        final long expiresAt;
+        volatile long lastAccess;
+
+        Node(V value, long weight, long expiresAt) {
+            this.value = value;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+            this.lastAccess = System.nanoTime();
+        }
+    }
+
+    /** Carries checked exceptions from the loader through {@link SingleFlight}. */
+    private static class LoadException extends RuntimeException {
+        LoadException(Exception cause) {
+            super(cause);
+        }
+    }
+
+    private final Map<K, Node<V>> entries = new ConcurrentHashMap<>();
+    private final SingleFlight<K, Node<V>> loading = new SingleFlight<>();
+    private final AtomicLong weight = new AtomicLong();
+    /** Incremented by every invalidation, values loaded before that are not stored. */
+    private final AtomicLong generation = new AtomicLong();
+
+    private final long maxWeight;
+    /** In nanoseconds, 0 if entries don't expire. */
+    private final long ttl;
+    private final ToLongFunction<V> weigher;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder loadNanos = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    /**
+     * @param name the name for the metrics of this cache.
+     * @param maxSize maximum number of entries.
+     * @param ttl how long entries are kept after they were loaded, null or zero to keep them until they are evicted.
+     */
+    public Cache(String name, long maxSize, Duration ttl) {
+        this(name, maxSize, ttl, v -> 1);
+    }
+
+    /**
+     * @param maxWeight maximum total weight of the entries.
+     * @param weigher weight of a value, e.g. its approximate size in bytes.
+     */
+    public Cache(String name, long maxWeight, Duration ttl, ToLongFunction<V> weigher) {
+        this.maxWeight = maxWeight;
+        this.ttl = ttl == null ? 0 : ttl.toNanos();
+        this.weigher = weigher;
+        Metrics.register(name, this::getMetrics);
+    }
+
+    /** Get the value if it is in the cache and has not expired. Counts as a hit or a miss. */
+    public Optional<V> getIfPresent(K key) {
+        Node<V> node = entries.get(key);
+        if (node == null || isExpired(node, System.nanoTime())) {
+            misses.increment();
+            return Optional.empty();
+        }
+        hits.increment();
+        node.lastAccess = System.nanoTime();
+        return Optional.of(node.value);
+    }
+
+    /** Get the value, loading it if it is not in the cache or has expired. */
+    public <E extends Exception> V get(K key, ThrowableFunction<K, V, E> loader) throws E {
+        Optional<V> cached = getIfPresent(key);
+        if (cached.isPresent()) return cached.get();
+
+        try {
+            return loading.run(key, () -> {
+                // Another thread may have finished loading this key between our lookup and now.
+                Node<V> current = entries.get(key);
+                if (current != null && !isExpired(current, System.nanoTime())) return current;
+
+                long start = System.nanoTime();
+                long generation = this.generation.get();
+                try {
+                    V value = loader.apply(key);
+                    return store(key, value, generation);
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new LoadException(e);
+                } finally {
+                    loads.increment();
+                    loadNanos.add(System.nanoTime() - start);
+                }
+            }).value;
+        } catch (LoadException e) {
+            @SuppressWarnings("unchecked")
+            E cause = (E) e.getCause();
+            throw cause;
+        }
+    }
+
+    public void put(K key, V value) {
+        store(key, value, generation.get());
+    }
+
+    /**
+     * Add a value that was loaded elsewhere, unless the cache was invalidated since the load started.
+     * @param generation taken before the load started, see {@link #generation()}.
+     */
+    public void put(K key, V value, long generation) {
+        store(key, value, generation);
+    }
+
+    /** Take this before loading a value that is added with {@link #put(Object, Object, long)}. */
+    public long generation() {
+        return generation.get();
+    }
+
+    /** @return the node, also when it was not stored because the cache was invalidated since the generation. */
+    private Node<V> store(K key, V value, long generation) {
+        long now = System.nanoTime();
+        Node<V> node = new Node<>(value, weigher.applyAsLong(value), ttl == 0 ? 0 : now + ttl);
+        if (this.generation.get() != generation) return node;
+
+        Node<V> previous = entries.put(key, node);
+        weight.addAndGet(node.weight - (previous != null ? previous.weight : 0));
+        // An invalidation may have started between the check and the put, it may have missed our node.
+        if (this.generation.get() != generation) {
+            if (entries.remove(key, node)) weight.addAndGet(-node.weight);
+            return node;
+        }
+        if (weight.get() > maxWeight) evict(key);
+        return node;
+    }
+
+    public void invalidate(K key) {
+        generation.incrementAndGet();
+        remove(key);
+    }
+
+    public void clear() {
+        generation.incrementAndGet();
+        entries.keySet().forEach(this::remove);
+    }
+
+    /** Remove the entries with a matching key. */
+    public void invalidateIf(Predicate<K> keys) {
+        generation.incrementAndGet();
+        entries.keySet().stream().filter(keys).forEach(this::remove);
+    }
+
+    private void remove(K key) {
+        Node<V> node = entries.remove(key);
+        if (node != null) weight.addAndGet(-node.weight);
+    }
+
+    /** The keys currently in the cache (including expired entries that haven't been removed yet). */
+    public Set<K> keys() {
+        return new HashSet<>(entries.keySet());
+    }
+
+    private boolean isExpired(Node<V> node, long now) {
+        return node.expiresAt != 0 && now - node.expiresAt >= 0;
+    }
+
+    /** Remove entries until we're below 90% of the maximum weight. The entry that was just added is kept. */
+    private synchronized void evict(K keep) {
+        long target = maxWeight - maxWeight / 10;
+        if (weight.get() <= maxWeight) return; // another thread already evicted.
+
+        long now = System.nanoTime();
+        entries.forEach((k, node) -> {
+            if (isExpired(node, now) && entries.remove(k, node)) {
+                weight.addAndGet(-node.weight);
+                expirations.increment();
+            }
+        });
+
+        entries.entrySet().stream()
+                .filter(e -> !e.getKey().equals(keep))
+                .sorted(Comparator.comparingLong(e -> e.getValue().lastAccess))
+                .takeWhile(e -> weight.get() > target)
+                .forEach(e -> {
+                    if (entries.remove(e.getKey(), e.getValue())) {
+                        weight.addAndGet(-e.getValue().weight);
+                        evictions.increment();
+                    }
+                });
+    }
+
+    private Map<String, Object> getMetrics() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("size", entries.size());
+        m.put("weight", weight.get());
+        m.put("maxWeight", maxWeight);
+        m.put("hits", hits.sum());
+        m.put("misses", misses.sum());
+        m.put("loads", loads.sum());
+        m.put("loadMillis", TimeUnit.NANOSECONDS.toMillis(loadNanos.sum()));
+        m.put("evictions", evictions.sum());
+        m.put("expirations", expirations.sum());
+        return m;
+    }
+}
@@ -0,0 +1,30 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.time.Duration;
+import java.util.Optional;
+
+/**
+ * <pre>
+ * Storage for the second tier of our caches: entries that no longer fit in memory, or that should survive a restart,
+ * or be shared with other servers running the frontend. See {@link CacheBackends} for which one is used.
+ *
+ * Used for data that is the same for every user: transformed documents ({@link ArticleCache}),
+ * and BlackLab responses ({@link BlackLabApi}, these are revalidated with BlackLab before they're used).
+ *
+ * Implementations must be thread-safe, and should never throw: a failure to read is a miss, a failure to write is ignored.
+ * Custom implementations need a public constructor that takes the {@link GlobalConfig}.
+ * </pre>
+ */
+public interface CacheBackend {
+    /** @return the value, empty if there is none, it expired, or it can't be read. */
+    Optional<byte[]> get(String key);
+
+    /**
+     * Store the value, replacing any previous value for the key.
+     * May happen in the background, so the value is not necessarily available right away.
+     */
+    void put(String key, byte[] value, Duration ttl);
+
+    /** Write anything pending and release resources, called when the servlet stops. */
+    default void close() {}
+}
@@ -0,0 +1,67 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.nio.file.Paths;
+import java.util.Optional;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import nl.inl.corpuswebsite.utils.GlobalConfig.Keys;
+
+/**
+ * <pre>
+ * Creates the {@link CacheBackend} configured with {@link Keys#CACHE_BACKEND}:
+ * - local:  segment files in {@link Keys#CACHE_DISK_DIR} used by this server only ({@link DiskCache}).
+ * - shared: a file per entry in {@link Keys#CACHE_DISK_DIR}, which may be shared by several servers, e.g. on NFS ({@link SharedDirectoryCache}).
+ * - or the name of a class implementing {@link CacheBackend}.
+ * </pre>
+ */
+public class CacheBackends {
+    private static final Logger logger = Logger.getLogger(CacheBackends.class.getName());
+
+    private static CacheBackend instance;
+    private static boolean initialized = false;
+
+    private CacheBackends() {}
+
+    /** @return the backend, empty if there is none configured, caching is disabled, or the backend can't be used. */
+    public static synchronized Optional<CacheBackend> getInstance() {
+        if (!initialized) {
+            initialized = true;
+            GlobalConfig config = GlobalConfig.getInstance();
+            if (config.getBool(Keys.CACHE)) {
+                String type = Optional.ofNullable(config.get(Keys.CACHE_BACKEND)).map(String::trim).orElse("local");
+                try {
+                    instance = create(type, config).orElse(null);
+                    if (instance != null) logger.info("Using " + type + " cache backend");
+                } catch (Exception e) {
+                    logger.log(Level.WARNING, "Cannot use " + type + " cache backend, continuing without it", e);
+                }
+            }
+        }
+        return Optional.ofNullable(instance);
+    }
+
+    private static Optional<CacheBackend> create(String type, GlobalConfig config) throws Exception {
+        Optional<String> dir = Optional.ofNullable(config.get(Keys.CACHE_DISK_DIR)).filter(d -> !d.isBlank());
+        long maxSize = Long.parseLong(config.get(Keys.CACHE_DISK_MAX_SIZE));
+        switch (type) {
+            case "local":
+                if (dir.isEmpty()) return Optional.empty();
+                return Optional.of(new DiskCache(Paths.get(dir.get()), maxSize, Integer.parseInt(config.get(Keys.CACHE_DISK_SEGMENT_SIZE))));
+            case "shared":
+                if (dir.isEmpty()) return Optional.empty();
+                return Optional.of(new SharedDirectoryCache(Paths.get(dir.get()), maxSize));
+            default:
+                Class<? extends CacheBackend> c = Class.forName(type).asSubclass(CacheBackend.class);
+                return Optional.of(c.getConstructor(GlobalConfig.class).newInstance(config));
+        }
+    }
+
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.close();
+            instance = null;
+        }
+        initialized = false;
+    }
+}
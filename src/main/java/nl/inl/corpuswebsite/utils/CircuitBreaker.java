@@ -0,0 +1,94 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * <pre>
+ * Stops calling a part of BlackLab that is failing, so requests fail fast instead of each waiting for a timeout.
+ *
+ * CLOSED:    calls are allowed. After a number of consecutive failures the breaker opens.
+ * OPEN:      calls are refused with a 503, until some time has passed.
+ * HALF_OPEN: a single trial call is allowed. If it succeeds the breaker closes again, otherwise it reopens.
+ *
+ * Every call that was allowed must be reported using {@link #success()}, {@link #failure()} or {@link #cancel()}.
+ * </pre>
+ */
+public class CircuitBreaker {
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final String name;
+    private final int threshold;
+    private final long openNanos;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openedAt;
+    private boolean trialInProgress = false;
+
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder opened = new LongAdder();
+
+    /**
+     * @param name used in error messages
+     * @param threshold number of consecutive failures after which the breaker opens.
+     * @param openMillis how long the breaker stays open before allowing a trial call.
+     */
+    public CircuitBreaker(String name, int threshold, long openMillis) {
+        this.name = name;
+        this.threshold = Math.max(1, threshold);
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+    }
+
+    /** @throws QueryException (503) when the call is not allowed. */
+    public synchronized void acquire() throws QueryException {
+        if (state == State.OPEN && System.nanoTime() - openedAt >= openNanos) {
+            state = State.HALF_OPEN;
+            trialInProgress = false;
+        }
+        if (state == State.CLOSED) return;
+        if (state == State.HALF_OPEN && !trialInProgress) {
+            trialInProgress = true;
+            return;
+        }
+
+        rejected.increment();
+        long retryIn = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(openNanos - (System.nanoTime() - openedAt)));
+        throw new QueryException(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "BlackLab is not responding (" + name + "), please try again in " + retryIn + " seconds.");
+    }
+
+    public synchronized void success() {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        trialInProgress = false;
+    }
+
+    public synchronized void failure() {
+        ++consecutiveFailures;
+        if (state == State.OPEN) return; // a call that was started before the breaker opened.
+        if (state == State.HALF_OPEN || consecutiveFailures >= threshold) {
+            opened.increment();
+            state = State.OPEN;
+            openedAt = System.nanoTime();
+            trialInProgress = false;
+        }
+    }
+
+    /** The call was not made after all (e.g. no connection was available), it counts as neither success nor failure. */
+    public synchronized void cancel() {
+        trialInProgress = false;
+    }
+
+    public synchronized Map<String, Object> getMetrics() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("state", state.name());
+        m.put("consecutiveFailures", consecutiveFailures);
+        m.put("opened", opened.sum());
+        m.put("rejected", rejected.sum());
+        return m;
+    }
+}
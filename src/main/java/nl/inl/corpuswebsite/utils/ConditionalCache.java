@@ -0,0 +1,375 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.net.http.HttpHeaders;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * <pre>
+ * Cache for data retrieved from BlackLab, that is revalidated with BlackLab once it expires.
+ * The entries are kept in a {@link Cache} (which bounds and evicts them), this class adds the revalidation.
+ *
+ * Along with the value, we keep the validators (ETag and Last-Modified headers) of the response(s) it was created from.
+ * When the entry expires, the loader receives the stale entry, so it can make a conditional request.
+ * If BlackLab answers 304 Not Modified, the loader returns the stale entry as-is, and it is kept for another ttl,
+ * without downloading or parsing the data again.
+ *
+ * Errors are not cached.
+ * Optionally, an expired entry is still used for a while, either while it's revalidated in the background,
+ * or when revalidating it fails, see {@link #get(String, Duration, Duration, Duration, Loader, Loader, Executor)}.
+ *
+ * Loading is per key: when several requests miss the same key at the same time, only one of them calls the loader, the others wait for it.
+ * Requests for other keys are never blocked by a load in progress.
+ * Only a successfully loaded entry is shared with the waiting requests. When loading fails, they call the loader themselves:
+ * the error may be specific to the request that loaded (e.g. missing credentials, which needs headers on that request's response).
+ *
+ * Entries remember whether BlackLab marked the response(s) as public (Cache-Control: public),
+ * so they can be shared between users, see {@link BlackLabApi}.
+ * </pre>
+ *
+ * @param <V> the cached value, should be immutable as it is shared between requests.
+ */
+public class ConditionalCache<V> {
+
+    /** The validators of a response from BlackLab, used to ask BlackLab whether our copy is still up to date. */
+    public static class Validators {
+        public static final Validators NONE = new Validators(Optional.empty(), Optional.empty(), false);
+
+        public final Optional<String> etag;
+        public final Optional<String> lastModified;
+        /** Whether the response was marked as the same for every user (Cache-Control: public). */
+        public final boolean isPublic;
+
+        public Validators(Optional<String> etag, Optional<String> lastModified, boolean isPublic) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.isPublic = isPublic;
+        }
+
+        public static Validators of(HttpHeaders headers) {
+            boolean isPublic = headers.allValues("Cache-Control").stream()
+                    .flatMap(v -> Arrays.stream(v.split(",")))
+                    .map(d -> d.trim().toLowerCase())
+                    .anyMatch("public"::equals);
+            return new Validators(headers.firstValue("ETag"), headers.firstValue("Last-Modified"), isPublic);
+        }
+
+        /** Add the conditional headers to the request, so BlackLab can answer 304 if it has nothing new. */
+        public <T extends URLBuilder<T>> T apply(T request) {
+            etag.ifPresent(e -> request.header("If-None-Match", e));
+            lastModified.ifPresent(l -> request.header("If-Modified-Since", l));
+            return request;
+        }
+    }
+
+    /** A cached value, along with the validators for each of the responses it was created from. */
+    public static class Entry<V> {
+        public final V value;
+        public final List<Validators> validators;
+
+        public Entry(V value, List<Validators> validators) {
+            this.value = value;
+            this.validators = validators;
+        }
+
+        /** Whether all responses this entry was created from are public, so it may be shared between users. */
+        public boolean isPublic() {
+            return !validators.isEmpty() && validators.stream().allMatch(v -> v.isPublic);
+        }
+
+        /** Validators of the i-th response, or none if this entry doesn't have them. */
+        public Validators getValidators(int i) {
+            return i < validators.size() ? validators.get(i) : Validators.NONE;
+        }
+    }
+
+    public interface Loader<V, E extends Exception> {
+        /**
+         * @param stale the expired entry, if there is one.
+         * @return the stale entry itself if it's still up to date, a new entry, or an error.
+         */
+        Result<Entry<V>, E> load(Optional<Entry<V>> stale);
+    }
+
+    /** A value, and how long ago it was loaded or last revalidated with BlackLab. */
+    public static class Aged<V> {
+        public final V value;
+        public final Duration age;
+        /** Whether the value has expired, and is used while (or instead of) revalidating it. */
+        public final boolean stale;
+
+        public Aged(V value, Duration age, boolean stale) {
+            this.value = value;
+            this.age = age;
+            this.stale = stale;
+        }
+    }
+
+    private static class Timed<V> {
+        final Entry<V> entry;
+        final long loadedAt;
+        final long expiresAt;
+
+        Timed(Entry<V> entry, long loadedAt, Duration ttl) {
+            this.entry = entry;
+            this.loadedAt = loadedAt;
+            this.expiresAt = loadedAt + ttl.toNanos();
+        }
+
+        Aged<V> aged(long now) {
+            return new Aged<>(entry.value, Duration.ofNanos(Math.max(0, now - loadedAt)), now - expiresAt >= 0);
+        }
+    }
+
+    /** Load and wait times of a single key. */
+    private static class KeyStats {
+        final LongAdder loads = new LongAdder();
+        final LongAdder loadNanos = new LongAdder();
+        final LongAdder waits = new LongAdder();
+        final LongAdder waitNanos = new LongAdder();
+
+        Map<String, Object> getMetrics() {
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("loads", loads.sum());
+            m.put("loadMillis", TimeUnit.NANOSECONDS.toMillis(loadNanos.sum()));
+            m.put("waits", waits.sum());
+            m.put("waitMillis", TimeUnit.NANOSECONDS.toMillis(waitNanos.sum()));
+            return m;
+        }
+    }
+
+    private final int maxEntries;
+    /** Entries don't expire in the cache itself, as expired entries are still used for revalidation, and possibly while stale. */
+    private final Cache<String, Timed<V>> entries;
+    private final SingleFlight<String, Optional<Timed<V>>> loading = new SingleFlight<>();
+    /** Keys being revalidated in the background. */
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder revalidated = new LongAdder();
+    private final LongAdder loaded = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+    private final LongAdder staleErrors = new LongAdder();
+    private final LongAdder refreshErrors = new LongAdder();
+    private final KeyStats totals = new KeyStats();
+    /** Null if load times aren't tracked per key. */
+    private final Map<String, KeyStats> perKey;
+
+    /**
+     * @param name the name for the metrics of this cache, the revalidation metrics are in name.revalidation.
+     * @param maxEntries when exceeded, the least recently used entries are removed.
+     */
+    public ConditionalCache(String name, int maxEntries) {
+        this(name, maxEntries, false);
+    }
+
+    /**
+     * @param trackKeys also report load and wait times for each key (up to maxEntries keys), only sensible when there are few keys.
+     */
+    public ConditionalCache(String name, int maxEntries, boolean trackKeys) {
+        this.maxEntries = maxEntries;
+        this.entries = new Cache<>(name, maxEntries, null);
+        this.perKey = trackKeys ? new ConcurrentHashMap<>() : null;
+        Metrics.register(name + ".revalidation", this::getMetrics);
+    }
+
+    /**
+     * For large values, bound the cache by their total weight instead of their number.
+     * @param maxWeight when exceeded, the least recently used entries are removed.
+     * @param weigher weight of a value, e.g. its approximate size in bytes.
+     */
+    public ConditionalCache(String name, long maxWeight, ToLongFunction<V> weigher) {
+        this.maxEntries = 0;
+        this.entries = new Cache<>(name, maxWeight, null, t -> weigher.applyAsLong(t.entry.value));
+        this.perKey = null;
+        Metrics.register(name + ".revalidation", this::getMetrics);
+    }
+
+    /**
+     * Get the value, loading or revalidating it if it is not in the cache or has expired.
+     * @param ttl how long the entry may be used without asking BlackLab, when it is (re)loaded now.
+     */
+    public <E extends Exception> Result<V, E> get(String key, Duration ttl, Loader<V, E> loader) {
+        return get(key, ttl, Duration.ZERO, Duration.ZERO, loader, loader, Runnable::run).map(a -> a.value);
+    }
+
+    /**
+     * <pre>
+     * Get the value, allowing an expired entry to be used for a while (as in Cache-Control: stale-while-revalidate and stale-if-error):
+     * - shortly after it expires, the entry is returned as-is, and revalidated in the background (once, no matter how many requests use it meanwhile).
+     * - when loading fails (e.g. BlackLab is down), the entry is returned instead of the error.
+     * </pre>
+     * @param staleWhileRevalidate how long after expiring the entry is returned while revalidating it in the background.
+     * @param staleIfError how long after expiring the entry is returned when loading fails.
+     * @param refresher the loader for the background revalidation, it should not depend on the current request, as that may have finished by then.
+     * @param executor runs the background revalidation.
+     * @return the value and how long ago it was loaded or revalidated.
+     */
+    public <E extends Exception> Result<Aged<V>, E> get(
+            String key,
+            Duration ttl,
+            Duration staleWhileRevalidate,
+            Duration staleIfError,
+            Loader<V, E> loader,
+            Loader<V, E> refresher,
+            Executor executor
+    ) {
+        Timed<V> current = entries.getIfPresent(key).orElse(null);
+        long now = System.nanoTime();
+        if (current != null && now - current.expiresAt < 0) {
+            hits.increment();
+            return Result.success(current.aged(now));
+        }
+        if (current != null && now - current.expiresAt < staleWhileRevalidate.toNanos()) {
+            staleHits.increment();
+            refresh(key, ttl, refresher, executor);
+            return Result.success(current.aged(now));
+        }
+
+        Result<Timed<V>, E> result = load(key, ttl, loader);
+        now = System.nanoTime();
+        if (result.hasError() && current != null && now - current.expiresAt < staleIfError.toNanos()) {
+            staleErrors.increment();
+            return Result.success(current.aged(now));
+        }
+        long loadedAt = now;
+        return result.map(t -> t.aged(loadedAt));
+    }
+
+    /** Revalidate the entry in the background, unless that is already happening. */
+    private <E extends Exception> void refresh(String key, Duration ttl, Loader<V, E> refresher, Executor executor) {
+        if (!refreshing.add(key)) return;
+        try {
+            executor.execute(() -> {
+                try {
+                    load(key, ttl, refresher).tapError(e -> refreshErrors.increment());
+                } catch (RuntimeException e) {
+                    refreshErrors.increment();
+                } finally {
+                    refreshing.remove(key);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            refreshing.remove(key); // shutting down, the next request will try again.
+        }
+    }
+
+    private <E extends Exception> Result<Timed<V>, E> load(String key, Duration ttl, Loader<V, E> loader) {
+        long start = System.nanoTime();
+        AtomicReference<Result<Timed<V>, E>> loadedHere = new AtomicReference<>();
+        AtomicReference<RuntimeException> thrownHere = new AtomicReference<>();
+        Optional<Timed<V>> shared = loading.run(key, () -> {
+            try {
+                loadedHere.set(loadNow(key, ttl, loader));
+                return loadedHere.get().getResult();
+            } catch (RuntimeException e) {
+                // e.g. a ReturnToClientException, that belongs to this request only.
+                thrownHere.set(e);
+                return Optional.empty();
+            }
+        });
+        if (thrownHere.get() != null) throw thrownHere.get();
+
+        boolean waited = loadedHere.get() == null && shared.isPresent();
+        Result<Timed<V>, E> result = loadedHere.get() != null ? loadedHere.get()
+                : shared.isPresent() ? Result.success(shared.get())
+                : loadNow(key, ttl, loader); // loading failed for the other request, try for ourselves.
+
+        long elapsed = System.nanoTime() - start;
+        for (KeyStats stats : stats(key)) {
+            if (!waited) { stats.loads.increment(); stats.loadNanos.add(elapsed); }
+            else { stats.waits.increment(); stats.waitNanos.add(elapsed); }
+        }
+        return result;
+    }
+
+    private <E extends Exception> Result<Timed<V>, E> loadNow(String key, Duration ttl, Loader<V, E> loader) {
+        // Another thread may have finished loading this key between our lookup and now.
+        Timed<V> current = entries.getIfPresent(key).orElse(null);
+        if (current != null && System.nanoTime() - current.expiresAt < 0) return Result.success(current);
+
+        Optional<Entry<V>> stale = Optional.ofNullable(current).map(t -> t.entry);
+        long generation = entries.generation();
+        return loader.load(stale).map(entry -> {
+            if (stale.isPresent() && stale.get() == entry) revalidated.increment();
+            else loaded.increment();
+            Timed<V> timed = new Timed<>(entry, System.nanoTime(), ttl);
+            entries.put(key, timed, generation); // not if the cache was invalidated while loading.
+            return timed;
+        });
+    }
+
+    private List<KeyStats> stats(String key) {
+        if (perKey == null) return List.of(totals);
+        KeyStats stats = perKey.get(key);
+        if (stats == null && perKey.size() < maxEntries) stats = perKey.computeIfAbsent(key, __ -> new KeyStats());
+        return stats != null ? List.of(totals, stats) : List.of(totals);
+    }
+
+    /** Get the entry if it is cached and has not expired, without loading it. */
+    public Optional<Entry<V>> getFresh(String key) {
+        return entries.getIfPresent(key)
+                .filter(t -> System.nanoTime() - t.expiresAt < 0)
+                .map(t -> t.entry);
+    }
+
+    /** Add an entry that was loaded elsewhere. */
+    public void put(String key, Entry<V> entry, Duration ttl) {
+        entries.put(key, new Timed<>(entry, System.nanoTime(), ttl));
+    }
+
+    /**
+     * Add an entry that was loaded elsewhere, unless the cache was invalidated since the load started.
+     * @param generation taken before the load started, see {@link #generation()}.
+     */
+    public void put(String key, Entry<V> entry, Duration ttl, long generation) {
+        entries.put(key, new Timed<>(entry, System.nanoTime(), ttl), generation);
+    }
+
+    /** Take this before loading an entry that is added with {@link #put(String, Entry, Duration, long)}. */
+    public long generation() {
+        return entries.generation();
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    /** Remove the entries with a matching key, e.g. because the data changed in BlackLab. */
+    public void invalidateIf(Predicate<String> keys) {
+        entries.invalidateIf(keys);
+    }
+
+    /** The size and evictions are in the metrics of {@link #entries}. */
+    private Map<String, Object> getMetrics() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("hits", hits.sum());
+        m.put("revalidated", revalidated.sum());
+        m.put("loaded", loaded.sum());
+        m.put("staleHits", staleHits.sum());
+        m.put("staleErrors", staleErrors.sum());
+        m.put("refreshErrors", refreshErrors.sum());
+        m.putAll(totals.getMetrics());
+        m.put("inFlight", loading.getMetrics().get("inFlight"));
+        if (perKey != null) {
+            Map<String, Object> keys = new TreeMap<>();
+            perKey.forEach((k, stats) -> keys.put(k, stats.getMetrics()));
+            m.put("keys", keys);
+        }
+        return m;
+    }
+}
@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
@@ -34,9 +35,20 @@ public class CorpusConfig {
     private final Optional<String> corpusDataFormat;
 
     private final String listValues;
+
+    /** Identifies this version of the config, see {@link #getVersion()}. */
+    private final Optional<String> version;
     
     public CorpusConfig(String corpusId, String configAsXml, String configAsJson)
             throws SAXException, IOException, ParserConfigurationException, XPathExpressionException, SaxonApiException {
+        this(corpusId, configAsXml, configAsJson, List.of());
+    }
+
+    /**
+     * @param validators the validators BlackLab sent with the xml and json responses, see {@link #getVersion()}.
+     */
+    public CorpusConfig(String corpusId, String configAsXml, String configAsJson, List<ConditionalCache.Validators> validators)
+            throws SAXException, IOException, ParserConfigurationException, XPathExpressionException, SaxonApiException {
         Processor proc = new Processor(false);
         DocumentBuilder builder = proc.newDocumentBuilder();
         XdmNode doc = builder.build(new StreamSource(new ByteArrayInputStream(configAsXml.getBytes(StandardCharsets.UTF_8))));
@@ -44,6 +56,9 @@ public class CorpusConfig {
 
         this.corpusId = corpusId;
         this.jsonUnescaped = configAsJson;
+        this.version = !validators.isEmpty() && validators.stream().allMatch(v -> v.etag.isPresent() || v.lastModified.isPresent())
+                ? Optional.of(validators.stream().map(v -> v.etag.orElse("") + ";" + v.lastModified.orElse("")).collect(Collectors.joining(",")))
+                : Optional.empty();
         this.displayName = xp.evaluate("/blacklabResponse/displayName", doc).stream().findFirst().map(XdmItem::getStringValue).or(() -> Optional.of(corpusId));
         this.corpusDataFormat = xp.evaluate("//documentFormat", doc).stream().findFirst().map(XdmItem::getStringValue);
 
@@ -92,4 +107,12 @@ public class CorpusConfig {
     public String getListValues() {
         return listValues;
     }
+
+    /**
+     * Identifies this version of the config, built from the ETag and Last-Modified headers of the responses it was created from.
+     * @return empty if BlackLab didn't send those, then we can't tell whether the config changed.
+     */
+    public Optional<String> getVersion() {
+        return version;
+    }
 }
@@ -0,0 +1,265 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * <pre>
+ * In-memory listing of the files in the corpus interface data directory ({@link GlobalConfig.Keys#CORPUS_CONFIG_DIR}),
+ * so finding a corpus' files (search.xml, stylesheets, static files) doesn't need to touch the filesystem.
+ *
+ * The directory is scanned once, and then kept up to date by watching all its directories for changes (the same way as {@link GlobalConfig} watches its file).
+ * When the watch service loses events, the directory is scanned again.
+ * If the directory can't be watched, {@link #isActive()} is false and callers should check the filesystem themselves.
+ *
+ * Listeners (see {@link #addListener(Listener)}) are told about every change, so caches of things loaded from these files can be updated.
+ * Editors often write a file several times in a row, so they're told once a path hasn't changed for {@link #DEBOUNCE_MILLIS}.
+ * They're called on a separate thread, so not while handling a request.
+ * </pre>
+ */
+public class CorpusFileIndex {
+    private static final Logger logger = Logger.getLogger(CorpusFileIndex.class.getName());
+
+    /** How long a path must be left alone before the listeners are told it changed. */
+    private static final long DEBOUNCE_MILLIS = 500;
+
+    private static volatile CorpusFileIndex instance;
+    private static final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /** Told about changes in the watched directory, see {@link #addListener(Listener)}. */
+    @FunctionalInterface
+    public interface Listener {
+        /**
+         * @param root the watched directory
+         * @param changed the changed file or directory, the root itself after a rescan.
+         * @param isDirectory whether the changed path is a directory, or was one if it was deleted.
+         */
+        void changed(Path root, Path changed, boolean isDirectory);
+    }
+
+    private final Path root;
+    /** Absolute, normalized paths of all readable files under the root. Replaced as a whole on a rescan. */
+    private volatile Set<Path> files = ConcurrentHashMap.newKeySet();
+    /** All watched directories. Kept until the directory's delete event, so we know the deleted path was a directory. */
+    private final Map<WatchKey, Path> directories = new ConcurrentHashMap<>();
+    /** Per path, the notification that waits for it to stop changing. */
+    private final Map<Path, ScheduledFuture<?>> pending = new ConcurrentHashMap<>();
+    private WatchService watchService;
+    private Thread watchThread;
+    private ScheduledExecutorService notifier;
+    private volatile boolean active = false;
+
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder found = new LongAdder();
+    private final LongAdder rescans = new LongAdder();
+    private final LongAdder changes = new LongAdder();
+
+    /** Get the index for the directory, replacing the current one if it is for a different directory (e.g. the config changed). */
+    public static CorpusFileIndex forDirectory(Path dir) {
+        Path root = dir.toAbsolutePath().normalize();
+        CorpusFileIndex current = instance;
+        if (current != null && current.root.equals(root)) return current;
+        return create(root);
+    }
+
+    private static synchronized CorpusFileIndex create(Path root) {
+        if (instance == null || !instance.root.equals(root)) {
+            if (instance != null) instance.close();
+            instance = new CorpusFileIndex(root);
+        }
+        return instance;
+    }
+
+    /** Be notified of changes in the watched directory. Kept when the index is replaced. */
+    public static void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public static synchronized void shutdown() {
+        listeners.clear();
+        if (instance != null) {
+            instance.close();
+            instance = null;
+        }
+        Metrics.unregister("frontend.corpusFiles");
+    }
+
+    private CorpusFileIndex(Path root) {
+        this.root = root;
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            notifier = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "corpus-files-notifier");
+                t.setDaemon(true);
+                return t;
+            });
+            scan(root, files);
+            watchThread = new Thread(this::watch, "corpus-files-watcher");
+            watchThread.setDaemon(true);
+            watchThread.start();
+            active = true;
+            logger.info("Watching " + root + " for changes, " + files.size() + " files in " + directories.size() + " directories");
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "Cannot watch " + root + " for changes, files will be looked up on disk every time", e);
+            close();
+        }
+        Metrics.register("frontend.corpusFiles", this::getMetrics);
+    }
+
+    /** Whether the index is up to date, if not, don't use it. */
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Look up a file. Does not touch the filesystem.
+     * @param path the file, it must be under the indexed directory.
+     * @return the file if it exists and was readable when it was last seen, empty otherwise.
+     */
+    public Optional<File> get(Path path) {
+        lookups.increment();
+        Path p = path.toAbsolutePath().normalize();
+        if (!p.startsWith(root) || !files.contains(p)) return Optional.empty();
+        found.increment();
+        return Optional.of(p.toFile());
+    }
+
+    /** Add the directory and everything below it, and watch all its directories. */
+    private void scan(Path dir, Set<Path> into) throws IOException {
+        if (!Files.isDirectory(dir)) return;
+        try (Stream<Path> paths = Files.walk(dir, FileVisitOption.FOLLOW_LINKS)) {
+            paths.forEach(p -> {
+                if (Files.isDirectory(p)) register(p);
+                else if (Files.isReadable(p)) into.add(p.toAbsolutePath().normalize());
+            });
+        }
+    }
+
+    private void register(Path dir) {
+        try {
+            WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            directories.put(key, dir);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot watch directory " + dir, e);
+        }
+    }
+
+    private void rescan() throws IOException {
+        rescans.increment();
+        directories.keySet().forEach(WatchKey::cancel);
+        directories.clear();
+        Set<Path> rescanned = ConcurrentHashMap.newKeySet();
+        scan(root, rescanned);
+        files = rescanned;
+        notifyListeners(root, true);
+    }
+
+    private void watch() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = watchService.take();
+                Path dir = directories.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    changes.increment();
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+                        rescan();
+                        break;
+                    }
+                    Path changed = dir.resolve((Path) event.context()).toAbsolutePath().normalize();
+                    boolean isDirectory;
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                        // could be a directory, remove everything below it too. Its watch key is cancelled by the watch service.
+                        isDirectory = directories.containsValue(changed);
+                        directories.values().removeIf(d -> d.startsWith(changed));
+                        files.removeIf(f -> f.startsWith(changed));
+                    } else if (Files.isDirectory(changed)) {
+                        isDirectory = true;
+                        scan(changed, files);
+                    } else if (Files.isReadable(changed)) {
+                        isDirectory = false;
+                        files.add(changed);
+                    } else {
+                        isDirectory = false;
+                        files.remove(changed);
+                    }
+                    notifyListeners(changed, isDirectory);
+                }
+                // When the directory was deleted, its entry is removed by the delete event in its parent.
+                key.reset();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // shutting down
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Error watching " + root + ", files will be looked up on disk from now on", e);
+        } finally {
+            active = false;
+        }
+    }
+
+    /** Tell the listeners about the change once the path stops changing, a new change of the same path postpones it. */
+    private void notifyListeners(Path changed, boolean isDirectory) {
+        pending.compute(changed, (path, previous) -> {
+            if (previous != null) previous.cancel(false);
+            return notifier.schedule(() -> {
+                pending.remove(path);
+                for (Listener listener : listeners) {
+                    try {
+                        listener.changed(root, path, isDirectory);
+                    } catch (RuntimeException e) {
+                        logger.log(Level.WARNING, "Error handling change of " + path, e);
+                    }
+                }
+            }, DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+        });
+    }
+
+    private void close() {
+        active = false;
+        if (watchThread != null) watchThread.interrupt();
+        if (notifier != null) notifier.shutdownNow();
+        try {
+            if (watchService != null) watchService.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private Map<String, Object> getMetrics() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("root", root.toString());
+        m.put("active", active);
+        m.put("files", files.size());
+        m.put("directories", directories.size());
+        m.put("lookups", lookups.sum());
+        m.put("found", found.sum());
+        m.put("changes", changes.sum());
+        m.put("rescans", rescans.sum());
+        return m;
+    }
+}
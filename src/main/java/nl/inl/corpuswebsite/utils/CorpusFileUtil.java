@@ -8,6 +8,7 @@ import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Optional;
+import java.util.function.Function;
 import java.util.logging.Logger;
 
 import jakarta.servlet.http.HttpServletRequest;
@@ -23,6 +24,9 @@ import nl.inl.corpuswebsite.utils.GlobalConfig.Keys;
 public class CorpusFileUtil {
     private static final Logger logger = Logger.getLogger(CorpusFileUtil.class.getName());
 
+    /** Lookups of the default files inside the .war */
+    private static final Cache<String, Optional<File>> defaultFiles = new Cache<>("frontend.cache.defaultFiles", 10_000, null);
+
     /**
      * Get a file from the directory belonging to this corpus and return it, attempting to get a default if that fails.
      * User corpora never have their own directory, and so will only use the locations for the defaults.
@@ -44,6 +48,9 @@ public class CorpusFileUtil {
      */
     public static Optional<File> getProjectFile(String filesDir, Optional<String> corpus, Optional<String> fallbackCorpus, Optional<String> filePath) {
         Optional<Path> dataDir = getIfValid(filesDir);
+        // Use the in-memory listing of the directory when possible, so we don't need to touch the disk.
+        Optional<CorpusFileIndex> index = getIndex(filesDir);
+        Function<Path, Optional<File>> readable = p -> index.isPresent() ? index.get().get(p) : Optional.of(p.toFile()).filter(File::canRead);
         return dataDir
             // try the file in the corpus' own data directory,
             // (only when a valid non-user corpus)
@@ -53,28 +60,37 @@ public class CorpusFileUtil {
             .filter(path -> !isUserCorpus(corpus))
             .flatMap(p -> resolveIfValid(p, corpus))
             .flatMap(p -> resolveIfValid(p, filePath))
-            .map(Path::toFile)
-            .filter(File::canRead)
+            .flatMap(readable)
             // if the lookup above didn't work, try the defaults folder
             // see https://github.com/instituutnederlandsetaal/blacklab-frontend/pull/69
             .or(() -> dataDir
                 .flatMap(p -> resolveIfValid(p, fallbackCorpus))
                 .flatMap(p -> resolveIfValid(p, filePath))
-                .map(Path::toFile)
-                .filter(File::canRead)
+                .flatMap(readable)
             )
             // try default file inside .war
             // only available for a couple of standard items (search.xml, some builtin xslt files)
-            .or(() -> {
-                try {
-                    URL url = MainServlet.class.getResource("/interface-default/" + filePath.get());
-                    if (url == null) return Optional.empty();
-                    URI uri = url.toURI();
-                    return Optional.of(new File(uri)).filter(File::exists);
-                } catch (URISyntaxException e) {
-                    return Optional.empty();
-                }
-            });
+            // the .war doesn't change, so remember the result (including when the file doesn't exist).
+            .or(() -> filePath.flatMap(f -> defaultFiles.get(f, CorpusFileUtil::getDefaultFile)));
+    }
+
+    /**
+     * @param filesDir the root dir where per-corpus files are stored.
+     * @return the in-memory index of the directory, if it is configured and it could be watched for changes.
+     */
+    public static Optional<CorpusFileIndex> getIndex(String filesDir) {
+        return getIfValid(filesDir).map(CorpusFileIndex::forDirectory).filter(CorpusFileIndex::isActive);
+    }
+
+    private static Optional<File> getDefaultFile(String filePath) {
+        try {
+            URL url = MainServlet.class.getResource("/interface-default/" + filePath);
+            if (url == null) return Optional.empty();
+            URI uri = url.toURI();
+            return Optional.of(new File(uri)).filter(File::exists);
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return Optional.empty();
+        }
     }
 
     /**
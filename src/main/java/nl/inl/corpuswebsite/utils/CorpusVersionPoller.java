@@ -0,0 +1,119 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import nl.inl.corpuswebsite.utils.GlobalConfig.Keys;
+
+/**
+ * <pre>
+ * Notices when corpora are (re)indexed in BlackLab, so cached data about them can be removed.
+ *
+ * Periodically lists the corpora in BlackLab (see {@link BlackLabApi#getCorpusVersions()}),
+ * and tells the listeners about every corpus whose version changed, or that was removed.
+ * Corpora seen for the first time don't need anything, as there's nothing cached for them yet.
+ *
+ * Only corpora visible without logging in are listed, private corpora are only refreshed once their entries expire.
+ * See {@link Keys#BLS_VERSION_POLL_INTERVAL}.
+ * </pre>
+ */
+public class CorpusVersionPoller {
+    private static final Logger logger = Logger.getLogger(CorpusVersionPoller.class.getName());
+
+    private final GlobalConfig config;
+    private final Map<String, String> versions = new ConcurrentHashMap<>();
+    private final List<Consumer<String>> listeners = new CopyOnWriteArrayList<>();
+    private ScheduledExecutorService executor;
+
+    private final LongAdder polls = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder changes = new LongAdder();
+
+    public CorpusVersionPoller(GlobalConfig config) {
+        this.config = config;
+    }
+
+    /** @param listener called with the id of the changed corpus, on the polling thread. */
+    public void addListener(Consumer<String> listener) {
+        listeners.add(listener);
+    }
+
+    /** Start polling, unless it's disabled. */
+    public synchronized void start() {
+        long interval = BlackLabHttpClient.parseMillis(config.get(Keys.BLS_VERSION_POLL_INTERVAL), Duration.ofSeconds(60)).toMillis();
+        if (interval <= 0 || executor != null) return;
+
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "blacklab-frontend-corpus-versions");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleWithFixedDelay(this::poll, 0, interval, TimeUnit.MILLISECONDS);
+        Metrics.register("blacklab.corpusVersions", this::getMetrics);
+    }
+
+    public synchronized void stop() {
+        if (executor == null) return;
+        executor.shutdownNow();
+        executor = null;
+        Metrics.unregister("blacklab.corpusVersions");
+    }
+
+    /** The last seen version of the corpus, empty if it's not known (yet). */
+    public Optional<String> getVersion(String corpus) {
+        return Optional.ofNullable(versions.get(corpus));
+    }
+
+    private void poll() {
+        polls.increment();
+        Result<Map<String, String>, QueryException> current = new BlackLabApi(null, null, config).getCorpusVersions();
+        if (current.hasError()) {
+            errors.increment();
+            logger.fine("Cannot list corpora to check for changes: " + current.getError().get().getMessage());
+            return;
+        }
+
+        Map<String, String> latest = current.getResult().orElseThrow();
+        Set<String> changed = new HashSet<>();
+        versions.forEach((corpus, version) -> {
+            if (!version.equals(latest.get(corpus))) changed.add(corpus);
+        });
+        versions.keySet().retainAll(latest.keySet());
+        versions.putAll(latest);
+
+        for (String corpus : changed) {
+            changes.increment();
+            logger.info("Corpus " + corpus + " changed in BlackLab, removing it from the caches");
+            for (Consumer<String> listener : listeners) {
+                try {
+                    listener.accept(corpus);
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "Error handling change of corpus " + corpus, e);
+                }
+            }
+        }
+    }
+
+    private Map<String, Object> getMetrics() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("corpora", versions.size());
+        m.put("polls", polls.sum());
+        m.put("errors", errors.sum());
+        m.put("changes", changes.sum());
+        return m;
+    }
+}
@@ -0,0 +1,70 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.time.Duration;
+import java.util.Optional;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import nl.inl.corpuswebsite.utils.GlobalConfig.Keys;
+
+/**
+ * <pre>
+ * The time a client request may spend waiting on BlackLab in total.
+ *
+ * A page usually needs several calls to BlackLab (index metadata, document metadata, contents...).
+ * Every call is given the remaining budget (or its own timeout, if that is shorter), so the budget shrinks with every call.
+ * Once the budget is spent, further calls fail immediately instead of waiting for BlackLab again.
+ *
+ * The deadline is stored on the client request, and starts counting when it is first asked for. See {@link Keys#BLS_REQUEST_BUDGET}.
+ * Request attributes may only be used on the thread handling the client request, so ask for it there, and pass it along to other threads.
+ * </pre>
+ */
+public class Deadline {
+    /** For requests that are not made on behalf of a client. */
+    public static final Deadline NONE = new Deadline(null);
+
+    private static final String ATTRIBUTE = Deadline.class.getName();
+
+    /** In terms of {@link System#nanoTime()}, null if there is no deadline. */
+    private final Long expiresAt;
+
+    private Deadline(Long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    public static Deadline after(Duration budget) {
+        return new Deadline(System.nanoTime() + budget.toNanos());
+    }
+
+    /** Get the deadline for the client request, starting it if this is the first call. Only call this on the thread handling the request. */
+    public static Deadline of(HttpServletRequest request) {
+        if (request == null) return NONE;
+
+        if (request.getAttribute(ATTRIBUTE) instanceof Deadline d) return d;
+
+        Deadline d = after(BlackLabHttpClient.parseMillis(GlobalConfig.getInstance().get(Keys.BLS_REQUEST_BUDGET)));
+        request.setAttribute(ATTRIBUTE, d);
+        return d;
+    }
+
+    /** @return the time left, zero once the budget has been spent, or empty if there is no deadline. */
+    public Optional<Duration> remaining() {
+        if (expiresAt == null) return Optional.empty();
+        return Optional.of(Duration.ofNanos(Math.max(0, expiresAt - System.nanoTime())));
+    }
+
+    /**
+     * Get the time we may spend on the next call.
+     * @param timeout the timeout of the call itself.
+     * @return the smaller of the timeout and the remaining budget.
+     * @throws QueryException when the budget has already been spent.
+     */
+    public Duration limit(Duration timeout) throws QueryException {
+        if (expiresAt == null) return timeout;
+
+        long remaining = expiresAt - System.nanoTime();
+        if (remaining <= 0) throw new QueryException(HttpServletResponse.SC_GATEWAY_TIMEOUT, "Request took too long, gave up waiting for BlackLab.");
+        return remaining < timeout.toNanos() ? Duration.ofNanos(remaining) : timeout;
+    }
+}
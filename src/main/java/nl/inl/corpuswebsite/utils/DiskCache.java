@@ -0,0 +1,323 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import nl.inl.corpuswebsite.utils.GlobalConfig.Keys;
+
+/**
+ * <pre>
+ * Persistent cache on disk, so a restarted server doesn't start with empty caches. See {@link Keys#CACHE_DISK_DIR}.
+ * Only for use by a single server, see {@link SharedDirectoryCache} for a cache shared by several.
+ *
+ * Entries are appended to segment files of a fixed size, which are memory-mapped for both reading and writing.
+ * Every record has a header with the lengths, a checksum and the expiry time, followed by the key and the compressed value:
+ *
+ *   magic(int) keyLength(int) storedLength(int) rawLength(int) crc32(long) expiresAt(long, epoch ms) key(utf-8) value(deflated)
+ *
+ * The checksum covers the lengths and the expiry time as well as the key and value,
+ * and the lengths are checked against the segment size and {@link #MAX_KEY_LENGTH}/{@link #MAX_RAW_LENGTH} before anything is allocated.
+ *
+ * The index (key to segment and offset) is kept in memory, and rebuilt by scanning the segments on startup.
+ * A record with a bad checksum (e.g. a partial write when the server was killed) ends the scan of its segment.
+ * When the total size exceeds the maximum, the oldest segment is deleted along with all entries in it.
+ * Writing a key again appends a new record, the old one is ignored from then on.
+ * </pre>
+ */
+public class DiskCache implements CacheBackend {
+    private static final Logger logger = Logger.getLogger(DiskCache.class.getName());
+
+    /** Changed when the record format changes, records in the old format are ignored. */
+    private static final int MAGIC = 0xB1AC_CA5F;
+    private static final int HEADER_LENGTH = 4 + 4 + 4 + 4 + 8 + 8;
+    /** Longer keys are not stored. */
+    static final int MAX_KEY_LENGTH = 64 * 1024;
+    /** Larger values (before compression) are not stored. */
+    static final int MAX_RAW_LENGTH = 256 * 1024 * 1024;
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.dat");
+
+    private static class Segment {
+        final int id;
+        final Path path;
+        final MappedByteBuffer buffer;
+        /** Where the next record is written, only used for the active segment. */
+        int position;
+
+        Segment(int id, Path path, long size) throws IOException {
+            this.id = id;
+            this.path = path;
+            // The mapping stays valid after the file is closed.
+            try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+                file.setLength(size);
+                this.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+    }
+
+    private static class Location {
+        final Segment segment;
+        final int offset;
+        final long expiresAt;
+
+        Location(Segment segment, int offset, long expiresAt) {
+            this.segment = segment;
+            this.offset = offset;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final Path dir;
+    private final int segmentSize;
+    private final int maxSegments;
+
+    private final Map<String, Location> index = new ConcurrentHashMap<>();
+    /** Oldest first, the last one is the one being written to. Guarded by this. */
+    private final Deque<Segment> segments = new ArrayDeque<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder corrupt = new LongAdder();
+    private final LongAdder evictedSegments = new LongAdder();
+
+    /**
+     * @param maxSize maximum total size of the segments (at least two segments are kept).
+     * @param segmentSize size of a single segment file, a record larger than this is not stored.
+     */
+    public DiskCache(Path dir, long maxSize, int segmentSize) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.segmentSize = segmentSize;
+        this.maxSegments = (int) Math.max(2, maxSize / segmentSize);
+        open();
+        logger.info("Disk cache in " + dir + ": " + segments.size() + " segment(s), " + index.size() + " entries");
+        Metrics.register("frontend.cache.disk", this::getMetrics);
+    }
+
+    private synchronized void open() throws IOException {
+        List<Integer> ids;
+        try (Stream<Path> files = Files.list(dir)) {
+            ids = files
+                    .map(p -> SEGMENT_NAME.matcher(p.getFileName().toString()))
+                    .filter(Matcher::matches)
+                    .map(m -> Integer.parseInt(m.group(1)))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        for (int id : ids) {
+            Segment s = new Segment(id, segmentPath(id), Files.size(segmentPath(id)));
+            s.position = scan(s);
+            segments.add(s);
+        }
+        if (segments.isEmpty()) roll();
+        while (segments.size() > maxSegments) evictOldest();
+    }
+
+    /** Add the records in the segment to the index. @return the end of the last valid record. */
+    private int scan(Segment s) {
+        ByteBuffer b = s.buffer.duplicate();
+        long now = System.currentTimeMillis();
+        int offset = 0;
+        while (offset + HEADER_LENGTH <= b.capacity()) {
+            Optional<Map.Entry<String, byte[]>> record = read(b, offset);
+            if (record.isEmpty()) break;
+            long expiresAt = b.getLong(offset + 24);
+            if (expiresAt > now) index.put(record.get().getKey(), new Location(s, offset, expiresAt));
+            offset += HEADER_LENGTH + b.getInt(offset + 4) + b.getInt(offset + 8);
+        }
+        return offset;
+    }
+
+    /**
+     * Read and validate the record at the offset.
+     * @return the key and the stored (compressed) value, empty if there is no valid record.
+     */
+    private Optional<Map.Entry<String, byte[]>> read(ByteBuffer segment, int offset) {
+        ByteBuffer b = segment.duplicate();
+        if (offset + HEADER_LENGTH > b.capacity() || b.getInt(offset) != MAGIC) return Optional.empty();
+        int keyLength = b.getInt(offset + 4);
+        int storedLength = b.getInt(offset + 8);
+        int rawLength = b.getInt(offset + 12);
+        long crc = b.getLong(offset + 16);
+        long expiresAt = b.getLong(offset + 24);
+        if (!isValidLength(keyLength, MAX_KEY_LENGTH) || !isValidLength(storedLength, MAX_RAW_LENGTH) || !isValidLength(rawLength, MAX_RAW_LENGTH)
+                || (long) offset + HEADER_LENGTH + keyLength + storedLength > b.capacity()) {
+            corrupt.increment();
+            return Optional.empty();
+        }
+
+        byte[] key = new byte[keyLength];
+        byte[] stored = new byte[storedLength];
+        b.position(offset + HEADER_LENGTH);
+        b.get(key).get(stored);
+        if (checksum(key, stored, rawLength, expiresAt) != crc) {
+            corrupt.increment();
+            return Optional.empty();
+        }
+        return Optional.of(Map.entry(new String(key, StandardCharsets.UTF_8), stored));
+    }
+
+    private static boolean isValidLength(int length, int max) {
+        return length >= 0 && length <= max;
+    }
+
+    @Override
+    public Optional<byte[]> get(String key) {
+        Location l = index.get(key);
+        if (l == null || l.expiresAt <= System.currentTimeMillis()) {
+            misses.increment();
+            return Optional.empty();
+        }
+
+        Optional<byte[]> value = read(l.segment.buffer, l.offset)
+                .filter(r -> r.getKey().equals(key))
+                .flatMap(r -> inflate(r.getValue(), l.segment.buffer.getInt(l.offset + 12)));
+        if (value.isEmpty()) {
+            index.remove(key, l);
+            corrupt.increment();
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return value;
+    }
+
+    @Override
+    public void put(String key, byte[] value, Duration ttl) {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        if (k.length > MAX_KEY_LENGTH || value.length > MAX_RAW_LENGTH) return;
+        byte[] stored = deflate(value);
+        int length = HEADER_LENGTH + k.length + stored.length;
+        if (length > segmentSize) return;
+
+        long expiresAt = System.currentTimeMillis() + ttl.toMillis();
+        synchronized (this) {
+            try {
+                if (segments.getLast().position + length > segments.getLast().buffer.capacity()) roll();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Cannot create new disk cache segment", e);
+                return;
+            }
+            Segment s = segments.getLast();
+            ByteBuffer b = s.buffer.duplicate();
+            b.position(s.position);
+            b.putInt(MAGIC).putInt(k.length).putInt(stored.length).putInt(value.length).putLong(checksum(k, stored, value.length, expiresAt)).putLong(expiresAt);
+            b.put(k).put(stored);
+            index.put(key, new Location(s, s.position, expiresAt));
+            s.position += length;
+            writes.increment();
+        }
+    }
+
+    /** Start a new segment, deleting the oldest if there are too many. */
+    private void roll() throws IOException {
+        int id = segments.isEmpty() ? 1 : segments.getLast().id + 1;
+        if (!segments.isEmpty()) segments.getLast().buffer.force();
+        segments.add(new Segment(id, segmentPath(id), segmentSize));
+        while (segments.size() > maxSegments) evictOldest();
+    }
+
+    private void evictOldest() {
+        Segment oldest = segments.removeFirst();
+        index.values().removeIf(l -> l.segment == oldest);
+        evictedSegments.increment();
+        try {
+            Files.deleteIfExists(oldest.path);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot delete disk cache segment " + oldest.path, e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        segments.forEach(s -> s.buffer.force());
+        Metrics.unregister("frontend.cache.disk");
+    }
+
+    private Path segmentPath(int id) {
+        return dir.resolve(String.format("segment-%08d.dat", id));
+    }
+
+    /** Of the header fields (except the magic and the checksum itself), the key, and the stored value. */
+    static long checksum(byte[] key, byte[] value, int rawLength, long expiresAt) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(4 + 4 + 4 + 8).putInt(key.length).putInt(value.length).putInt(rawLength).putLong(expiresAt).array());
+        crc.update(key);
+        crc.update(value);
+        return crc.getValue();
+    }
+
+    static byte[] deflate(byte[] value) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(value);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(value.length / 2 + 64);
+            byte[] buf = new byte[8192];
+            while (!deflater.finished()) out.write(buf, 0, deflater.deflate(buf));
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /** @return the value, empty if it's not {@code length} bytes or can't be decompressed. */
+    static Optional<byte[]> inflate(byte[] stored, int length) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(stored);
+            byte[] value = new byte[length];
+            int n = 0;
+            while (n < length && !inflater.finished()) {
+                int read = inflater.inflate(value, n, length - n);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                n += read;
+            }
+            return n == length ? Optional.of(value) : Optional.empty();
+        } catch (DataFormatException e) {
+            return Optional.empty();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private Map<String, Object> getMetrics() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("entries", index.size());
+        synchronized (this) {
+            m.put("segments", segments.size());
+        }
+        m.put("maxSegments", maxSegments);
+        m.put("hits", hits.sum());
+        m.put("misses", misses.sum());
+        m.put("writes", writes.sum());
+        m.put("corrupt", corrupt.sum());
+        m.put("evictedSegments", evictedSegments.sum());
+        return m;
+    }
+}
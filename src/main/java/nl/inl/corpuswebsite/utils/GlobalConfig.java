@@ -111,6 +111,28 @@ public class GlobalConfig implements ServletContextListener {
         // todo remove and use a file watcher or something
         /** Development mode, disable caching of any corpus data (e.g. search.xml, article.xsl, meta.xsl etc) */
         CACHE("cache"),
+        /** Maximum number of search.xml configs, compiled stylesheets and templates kept in memory (each). Defaults to 1000. */
+        CACHE_MAX_ENTRIES("cache.maxEntries"),
+        /** How long search.xml configs and stylesheets are kept before they're read from disk again, 0 to keep them until evicted. Defaults to 0. */
+        CACHE_TTL("cache.ttl"),
+        /** Approximate memory (bytes) used for transformed documents and metadata. Defaults to 67108864 (64MiB), 0 to disable. */
+        CACHE_ARTICLES_MAX_SIZE("cache.articles.maxSize"),
+        /** How long transformed documents and metadata are kept. Defaults to 300000ms. */
+        CACHE_ARTICLES_TTL("cache.articles.ttl"),
+        /** Directory for the persistent cache of transformed documents and BlackLab responses. Not set by default (no persistent cache). */
+        CACHE_DISK_DIR("cache.disk.dir"),
+        /**
+         * How the persistent cache is stored: "local" (files in {@link #CACHE_DISK_DIR} used by this server only),
+         * "shared" (a file per entry in {@link #CACHE_DISK_DIR}, can be shared by several servers),
+         * or the name of a class implementing {@link CacheBackend}. Defaults to local.
+         */
+        CACHE_BACKEND("cache.backend"),
+        /** Maximum size (bytes) of the persistent cache. Defaults to 1073741824 (1GiB). */
+        CACHE_DISK_MAX_SIZE("cache.disk.maxSize"),
+        /** Size (bytes) of the files of the persistent cache. Defaults to 67108864 (64MiB). */
+        CACHE_DISK_SEGMENT_SIZE("cache.disk.segmentSize"),
+        /** How long entries in the persistent cache are used. Defaults to 86400000ms (a day). */
+        CACHE_DISK_TTL("cache.disk.ttl"),
         /** Enable/disable the debug info checkbox in the interface */
         SHOW_DEBUG_CHECKBOX_ON_CLIENT("debugInfo"),
         /**
@@ -141,7 +163,78 @@ public class GlobalConfig implements ServletContextListener {
          * One of "header", "cookie", "parameter" (query param). Attribute is not supported as creating an AJP request from Java is not possible.
          * Defaults to "header".
          */
-        AUTH_TARGET_TYPE("auth.target.type");
+        AUTH_TARGET_TYPE("auth.target.type"),
+
+        // settings for the connections to BlackLab, all durations are in milliseconds
+        /** Timeout for establishing a connection to BlackLab. Defaults to 5000. */
+        BLS_CONNECT_TIMEOUT("bls.connectTimeout"),
+        /** Timeout for a response from BlackLab, used when no timeout is set for the specific endpoint below. Defaults to 60000. */
+        BLS_READ_TIMEOUT("bls.readTimeout"),
+        /** Timeout for retrieving index metadata. Defaults to bls.readTimeout. */
+        BLS_READ_TIMEOUT_INDEX("bls.readTimeout.index"),
+        /** Timeout for retrieving document metadata. Defaults to bls.readTimeout. */
+        BLS_READ_TIMEOUT_DOCS("bls.readTimeout.docs"),
+        /** Timeout for retrieving document contents. Defaults to bls.readTimeout. */
+        BLS_READ_TIMEOUT_CONTENTS("bls.readTimeout.contents"),
+        /** Timeout for retrieving autogenerated xslt. Defaults to bls.readTimeout. */
+        BLS_READ_TIMEOUT_XSLT("bls.readTimeout.xslt"),
+        /** Maximum number of concurrent requests to BlackLab (slots). Further requests wait for a free slot. Defaults to 64. */
+        BLS_MAX_CONNECTIONS("bls.maxConnections"),
+        /** Maximum number of requests waiting for a free slot, further requests fail immediately. Defaults to 64. */
+        BLS_MAX_WAITING("bls.maxWaiting"),
+        /** Total time a single page/api request may spend waiting on BlackLab, across all calls it makes. Defaults to 90000ms. */
+        BLS_REQUEST_BUDGET("bls.requestBudget"),
+        /** Number of consecutive failures (per type of endpoint) after which calls to BlackLab fail fast. Defaults to 5. */
+        BLS_BREAKER_FAILURES("bls.circuitBreaker.failures"),
+        /** How long calls fail fast before BlackLab is tried again. Defaults to 30000ms. */
+        BLS_BREAKER_OPEN("bls.circuitBreaker.open"),
+        /** Use HTTP/2 when BlackLab supports it. Defaults to true. */
+        BLS_HTTP2("bls.http2"),
+        /** Let identical concurrent requests to BlackLab (same url and credentials) share a single request. Not for document contents, those are streamed. Defaults to true. */
+        BLS_COALESCE("bls.coalesce"),
+        /** Ask BlackLab to compress its responses (gzip or deflate). Defaults to true. */
+        BLS_COMPRESSION("bls.compression"),
+        /** How long index metadata, stylesheets and document metadata from BlackLab are cached before they are revalidated with BlackLab. Defaults to 300000ms. */
+        BLS_CACHE_TTL("bls.cache.ttl"),
+        /** How long data from BlackLab that may differ per user (authenticated requests, not marked public by BlackLab) is cached. Defaults to 60000ms. */
+        BLS_CACHE_USER_TTL("bls.cache.user.ttl"),
+        /** Maximum number of per-user stylesheets and document metadata entries (each). Defaults to 10000. */
+        BLS_CACHE_USER_MAX_ENTRIES("bls.cache.user.maxEntries"),
+        /** Approximate memory (bytes) used for per-user corpus configs (index metadata). Defaults to 67108864 (64MiB). */
+        BLS_CACHE_USER_INDEX_MAX_SIZE("bls.cache.user.index.maxSize"),
+        /** How long after expiring the corpus config (index metadata) is still used while it is revalidated in the background. Defaults to 60000ms. */
+        BLS_CACHE_STALE_WHILE_REVALIDATE("bls.cache.staleWhileRevalidate"),
+        /** How long after expiring the corpus config is still used when BlackLab can't be reached or returns an error. Defaults to 86400000ms. */
+        BLS_CACHE_STALE_IF_ERROR("bls.cache.staleIfError"),
+        /** How often (ms) to check whether corpora were indexed again in BlackLab, so they can be removed from the caches. 0 disables this. Defaults to 60000ms. */
+        BLS_VERSION_POLL_INTERVAL("bls.versionPoll.interval"),
+
+        /** Maximum number of documents in a single request to the batch metadata api (/${corpus}/api/docs?id=...). Defaults to 500. */
+        API_BATCH_MAX_DOCUMENTS("api.batch.maxDocuments"),
+        /** Number of documents retrieved from BlackLab at the same time for a single batch metadata request. Defaults to 8. */
+        API_BATCH_PARALLELISM("api.batch.parallelism"),
+        /** How long (ms) retrieving a single document of a batch metadata request may wait for BlackLab. Defaults to 10000ms. */
+        API_BATCH_DOCUMENT_TIMEOUT("api.batch.documentTimeout"),
+
+        /**
+         * How long (ms) a single xslt transformation may take before it is stopped, 0 for no limit. Defaults to 60000ms.
+         * The time the client request has left ({@link #BLS_REQUEST_BUDGET}) also limits it, see {@link XslTransformer#setTimeout(java.time.Duration)}.
+         */
+        XSLT_TIMEOUT("xslt.timeout"),
+        /** Maximum number of xslt transformations that run at the same time, see {@link XslTransformer#setWorkers(int, int)}. Defaults to 32. */
+        XSLT_WORKERS("xslt.workers"),
+        /** Maximum number of xslt transformations waiting for a worker, more are refused (503). Defaults to 64. */
+        XSLT_QUEUE("xslt.queue"),
+
+        /** Load the corpus configs, search.xml files and stylesheets of all corpora on startup. Defaults to false. */
+        WARMUP("warmup"),
+        /** Number of corpora loaded at the same time during warm-up. Defaults to 4. */
+        WARMUP_THREADS("warmup.threads"),
+        /** Maximum duration of the warm-up, after which we report ready regardless. Defaults to 120000ms. */
+        WARMUP_TIMEOUT("warmup.timeout"),
+
+        /** Expose runtime statistics (connections, caches) as json under /metrics. Defaults to false. */
+        METRICS("metrics");
 
         // #endregion GlobalConfigKeysInDocs
 
@@ -169,12 +262,48 @@ public class GlobalConfig implements ServletContextListener {
         set(defaultProps, Keys.SHOW_DEBUG_CHECKBOX_ON_CLIENT,   "false");
         set(defaultProps, Keys.FRONTEND_WITH_CREDENTIALS,       "false");
         set(defaultProps, Keys.CACHE,                           "true");
+        set(defaultProps, Keys.CACHE_MAX_ENTRIES,               "1000");
+        set(defaultProps, Keys.CACHE_TTL,                       "0");
+        set(defaultProps, Keys.CACHE_ARTICLES_MAX_SIZE,         "67108864");
+        set(defaultProps, Keys.CACHE_ARTICLES_TTL,              "300000");
+        set(defaultProps, Keys.CACHE_BACKEND,                   "local");
+        set(defaultProps, Keys.CACHE_DISK_MAX_SIZE,             "1073741824");
+        set(defaultProps, Keys.CACHE_DISK_SEGMENT_SIZE,         "67108864");
+        set(defaultProps, Keys.CACHE_DISK_TTL,                  "86400000");
         set(defaultProps, Keys.OIDC_CLIENT_ID,                  "blacklab-frontend");
 
         set(defaultProps, Keys.AUTH_SOURCE_NAME,                "Authorization");
         set(defaultProps, Keys.AUTH_SOURCE_TYPE,                "header");
         set(defaultProps, Keys.AUTH_TARGET_NAME,                "Authorization");
         set(defaultProps, Keys.AUTH_TARGET_TYPE,                "header");
+
+        set(defaultProps, Keys.BLS_CONNECT_TIMEOUT,             "5000");
+        set(defaultProps, Keys.BLS_READ_TIMEOUT,                "60000");
+        set(defaultProps, Keys.BLS_MAX_CONNECTIONS,             "64");
+        set(defaultProps, Keys.BLS_MAX_WAITING,                 "64");
+        set(defaultProps, Keys.BLS_REQUEST_BUDGET,              "90000");
+        set(defaultProps, Keys.BLS_BREAKER_FAILURES,            "5");
+        set(defaultProps, Keys.BLS_BREAKER_OPEN,                "30000");
+        set(defaultProps, Keys.BLS_HTTP2,                       "true");
+        set(defaultProps, Keys.BLS_COALESCE,                    "true");
+        set(defaultProps, Keys.BLS_COMPRESSION,                 "true");
+        set(defaultProps, Keys.BLS_CACHE_TTL,                   "300000");
+        set(defaultProps, Keys.BLS_CACHE_USER_TTL,              "60000");
+        set(defaultProps, Keys.BLS_CACHE_USER_MAX_ENTRIES,      "10000");
+        set(defaultProps, Keys.BLS_CACHE_USER_INDEX_MAX_SIZE,   "67108864");
+        set(defaultProps, Keys.BLS_CACHE_STALE_WHILE_REVALIDATE, "60000");
+        set(defaultProps, Keys.BLS_CACHE_STALE_IF_ERROR,        "86400000");
+        set(defaultProps, Keys.BLS_VERSION_POLL_INTERVAL,       "60000");
+        set(defaultProps, Keys.API_BATCH_MAX_DOCUMENTS,         "500");
+        set(defaultProps, Keys.API_BATCH_PARALLELISM,           "8");
+        set(defaultProps, Keys.API_BATCH_DOCUMENT_TIMEOUT,      "10000");
+        set(defaultProps, Keys.XSLT_TIMEOUT,                    "60000");
+        set(defaultProps, Keys.XSLT_WORKERS,                    "32");
+        set(defaultProps, Keys.XSLT_QUEUE,                      "64");
+        set(defaultProps, Keys.WARMUP,                          "false");
+        set(defaultProps, Keys.WARMUP_THREADS,                  "4");
+        set(defaultProps, Keys.WARMUP_TIMEOUT,                  "120000");
+        set(defaultProps, Keys.METRICS,                         "false");
         // JSPATH and CF_URL_ON_CLIENT properly initialized later, because we need the servlet context path for that.
         // JSPATH is also dependent on CF_URL_ON_CLIENT, so we need to watch out for the case where the user CF_URL_ON_CLIENT but not JSPATH.
         set(defaultProps, Keys.JSPATH,                          "/blacklab-frontend/js");
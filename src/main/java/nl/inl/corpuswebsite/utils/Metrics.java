@@ -0,0 +1,47 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Registry of runtime statistics for the various parts of the application (connection pool, caches, etc.).
+ * Parts register a supplier for their current values once, the values are only collected when requested.
+ * See {@link nl.inl.corpuswebsite.response.MetricsResponse}.
+ */
+public class Metrics {
+    private static final Logger logger = Logger.getLogger(Metrics.class.getName());
+
+    private static final Map<String, Supplier<Map<String, Object>>> sources = new ConcurrentSkipListMap<>();
+
+    private Metrics() {}
+
+    /**
+     * Register (or replace) a source of metrics.
+     * @param name name of the group of metrics, e.g. "blacklab.slots"
+     * @param source returns the current values, called on every snapshot.
+     */
+    public static void register(String name, Supplier<Map<String, Object>> source) {
+        sources.put(name, source);
+    }
+
+    public static void unregister(String name) {
+        sources.remove(name);
+    }
+
+    /** Collect the current values of all registered sources, ordered by name. */
+    public static Map<String, Map<String, Object>> snapshot() {
+        Map<String, Map<String, Object>> result = new LinkedHashMap<>();
+        sources.forEach((name, source) -> {
+            try {
+                result.put(name, source.get());
+            } catch (Exception e) {
+                logger.log(Level.FINE, "Error collecting metrics for " + name, e);
+            }
+        });
+        return result;
+    }
+}
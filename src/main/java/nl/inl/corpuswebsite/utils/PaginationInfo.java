@@ -1,12 +1,14 @@
 package nl.inl.corpuswebsite.utils;
 
+import java.util.Map;
 import java.util.Optional;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.apache.commons.lang3.StringUtils;
 
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+
 /**
  * Since pagination can be disabled, edited by the user through the url, and BlackLab has some peculiarities with values touching document boundaries,
  * We correct the values.
@@ -19,7 +21,13 @@ import org.apache.commons.lang3.StringUtils;
 public class PaginationInfo {
     private static final Logger logger = Logger.getLogger(PaginationInfo.class.getName());
 
-    private static final Pattern CAPTURE_DOCLENGTH_PATTERN = Pattern.compile("<lengthInTokens>\\s*(\\d+)\\s*</lengthInTokens>");
+    /** Length of the main annotated field. */
+    private static final String DOCLENGTH_XPATH = "(//lengthInTokens)[1]";
+    /**
+     * Length of a specific field (parallel corpora).
+     * The field may either be the full field name like contents__nl or just a version like nl.
+     */
+    private static final String FIELD_DOCLENGTH_XPATH = "(//fieldName[. = $field or ends-with(., '__' || $field)]/following-sibling::*[1][self::tokenCount])[1]";
 
     public final int pageSize;
     public final int documentLength;
@@ -32,7 +40,7 @@ public class PaginationInfo {
     /**
      *
      * @param pageSize if omitted, pagination is disabled, otherwise a non-zero positive integer is expected
-     * @param documentMetadata for retrieving the length of the document
+     * @param documentMetadata for retrieving the length of the document, see {@link XslTransformer#parse(String)}
      * @param requestedPageStart the requested start of the page by the client
      * @param requestedPageEnd the requested end of the page by the client
      * @param hitStart if no (or invalid) requestedPageStart and requestedPageEnd, center around this value based on the page size.
@@ -40,7 +48,7 @@ public class PaginationInfo {
      */
     public PaginationInfo(
             Optional<Integer> pageSize,
-            Result<String, ? extends Exception> documentMetadata,
+            Result<XdmNode, ? extends Exception> documentMetadata,
             Optional<Integer> requestedPageStart,
             Optional<Integer> requestedPageEnd,
             Optional<Integer> hitStart,
@@ -91,19 +99,25 @@ public class PaginationInfo {
         this.blacklabPageEnd = end != documentLength ? Optional.of(end) : Optional.empty();
     }
 
-    private static int getDocumentLength(String documentMetadata, Optional<String> field) {
-        Pattern p = field
-                .filter(StringUtils::isNotBlank)
-                // Get document length for a specific field (parallel corpora)
-                // (note that field may either be full field name like contents__nl or just a version like nl)
-                .map(f -> Pattern.compile("<fieldName>(?:\\w+__)?" + f + "</fieldName>\\s*<tokenCount>\\s*(\\d+)\\s*</tokenCount>"))
-                // Get document length for main annotated field
-                .orElse(CAPTURE_DOCLENGTH_PATTERN);
-
-        Matcher m = p.matcher(documentMetadata);
-        if (m.find())
-            return Integer.parseInt(m.group(1));
-        else
-            throw new RuntimeException("Cannot decode document size" + field.map(f -> " for field " + f).orElse("") + ". Unsupported BlackLab version?");
+    /** Restore pagination that was computed before, see {@link ArticleCache}. */
+    PaginationInfo(int pageSize, int documentLength, int clientPageStart, int clientPageEnd, Optional<Integer> blacklabPageStart, Optional<Integer> blacklabPageEnd) {
+        this.pageSize = pageSize;
+        this.documentLength = documentLength;
+        this.clientPageStart = clientPageStart;
+        this.clientPageEnd = clientPageEnd;
+        this.blacklabPageStart = blacklabPageStart;
+        this.blacklabPageEnd = blacklabPageEnd;
+    }
+
+    private static int getDocumentLength(XdmNode documentMetadata, Optional<String> field) {
+        Optional<String> f = field.filter(StringUtils::isNotBlank);
+        try {
+            Optional<String> length = f.isPresent()
+                    ? XslTransformer.evaluate(documentMetadata, FIELD_DOCLENGTH_XPATH, Map.of("field", f.get()))
+                    : XslTransformer.evaluate(documentMetadata, DOCLENGTH_XPATH, Map.of());
+            return Integer.parseInt(length.orElseThrow().trim());
+        } catch (SaxonApiException | RuntimeException e) {
+            throw new RuntimeException("Cannot decode document size" + f.map(x -> " for field " + x).orElse("") + ". Unsupported BlackLab version?", e);
+        }
     }
-}
\ No newline at end of file
+}
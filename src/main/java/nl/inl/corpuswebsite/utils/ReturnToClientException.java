@@ -1,5 +1,8 @@
 package nl.inl.corpuswebsite.utils;
 
+import java.util.List;
+import java.util.Map;
+
 import jakarta.servlet.http.HttpServletResponse;
 
 /** 
@@ -10,6 +13,8 @@ import jakarta.servlet.http.HttpServletResponse;
 public class ReturnToClientException extends RuntimeException {
 	int code;
 	String body;
+	/** Added to the response along with the code and body. */
+	Map<String, List<String>> headers = Map.of();
 	
 	public ReturnToClientException(Exception e) {
 		super(e);
@@ -21,6 +26,14 @@ public class ReturnToClientException extends RuntimeException {
 		this.code = code;
 		this.body = body;
 	}
+	/**
+	 * The exception may be thrown on a background thread, the headers are only added to the response once it reaches
+	 * the thread handling the client request, as the response is not thread-safe.
+	 */
+	public ReturnToClientException(int code, String body, Map<String, List<String>> headers) {
+		this(code, body);
+		this.headers = headers;
+	}
 	public ReturnToClientException(int code) {
 		super();
 		this.code = code;
@@ -33,4 +46,8 @@ public class ReturnToClientException extends RuntimeException {
 	public String getBody() {
 		return body;
 	}
+
+	public Map<String, List<String>> getHeaders() {
+		return headers;
+	}
 }
@@ -0,0 +1,278 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import nl.inl.corpuswebsite.utils.GlobalConfig.Keys;
+
+/**
+ * <pre>
+ * Cache in a directory that can be shared by several servers (e.g. replicas behind a load balancer on an NFS mount),
+ * so an entry created by one of them can be used by all. See {@link Keys#CACHE_BACKEND}.
+ *
+ * Every entry is a file, named after a hash of its key:
+ *
+ *   magic(int) expiresAt(long, epoch ms) keyLength(int) rawLength(int) crc32(long) key(utf-8) value(deflated)
+ *
+ * As in {@link DiskCache}, the checksum covers the header fields as well, and the lengths are checked before anything is allocated.
+ *
+ * Files are written under a temporary name and then renamed, which is atomic (also on NFS),
+ * so readers never see a partial file and don't need any locks. The last write of a key wins.
+ * Writes happen in the background, when too many are waiting, new ones are dropped.
+ *
+ * Every few minutes, expired files are deleted, and when the directory is larger than the maximum size,
+ * the least recently written files as well. Every server does this, deleting a file that another server already deleted is harmless.
+ * </pre>
+ */
+public class SharedDirectoryCache implements CacheBackend {
+    private static final Logger logger = Logger.getLogger(SharedDirectoryCache.class.getName());
+
+    /** Changed when the file format changes, files in the old format are ignored. */
+    private static final int MAGIC = 0xB1AC_5A4F;
+    private static final int HEADER_LENGTH = 4 + 8 + 4 + 4 + 8;
+    private static final String SUFFIX = ".entry";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final Duration CLEANUP_INTERVAL = Duration.ofMinutes(5);
+    /** Temporary files older than this were left behind by a server that stopped while writing. */
+    private static final Duration TEMP_MAX_AGE = Duration.ofHours(1);
+
+    private final Path dir;
+    private final long maxSize;
+    private final ThreadPoolExecutor writer;
+    private final ScheduledExecutorService cleaner;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder corrupt = new LongAdder();
+    private final LongAdder deleted = new LongAdder();
+
+    /** @param maxSize maximum total size of the files, checked periodically. */
+    public SharedDirectoryCache(Path dir, long maxSize) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.maxSize = maxSize;
+        this.writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1_000), r -> daemon(r, "blacklab-frontend-shared-cache-writer"), (r, e) -> dropped.increment());
+        this.cleaner = Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "blacklab-frontend-shared-cache-cleaner"));
+        this.cleaner.scheduleWithFixedDelay(this::cleanup, CLEANUP_INTERVAL.toMillis(), CLEANUP_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+        logger.info("Shared cache in " + dir);
+        Metrics.register("frontend.cache.shared", this::getMetrics);
+    }
+
+    private static Thread daemon(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    @Override
+    public Optional<byte[]> get(String key) {
+        byte[] file;
+        try {
+            file = Files.readAllBytes(path(key));
+        } catch (NoSuchFileException e) {
+            misses.increment();
+            return Optional.empty();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Cannot read shared cache entry " + key, e);
+            misses.increment();
+            return Optional.empty();
+        }
+
+        Optional<byte[]> value = read(file, key);
+        if (value.isPresent()) hits.increment();
+        else misses.increment();
+        return value;
+    }
+
+    /** @return the value if the file is valid, holds the key, and hasn't expired. */
+    private Optional<byte[]> read(byte[] file, String key) {
+        ByteBuffer b = ByteBuffer.wrap(file);
+        if (file.length < HEADER_LENGTH || b.getInt() != MAGIC) {
+            corrupt.increment();
+            return Optional.empty();
+        }
+        long expiresAt = b.getLong();
+        int keyLength = b.getInt();
+        int rawLength = b.getInt();
+        long crc = b.getLong();
+        if (expiresAt <= System.currentTimeMillis()) return Optional.empty();
+        if (keyLength < 0 || keyLength > DiskCache.MAX_KEY_LENGTH || rawLength < 0 || rawLength > DiskCache.MAX_RAW_LENGTH
+                || HEADER_LENGTH + (long) keyLength > file.length) {
+            corrupt.increment();
+            return Optional.empty();
+        }
+
+        byte[] k = new byte[keyLength];
+        byte[] stored = new byte[file.length - HEADER_LENGTH - keyLength];
+        b.get(k).get(stored);
+        if (DiskCache.checksum(k, stored, rawLength, expiresAt) != crc) {
+            corrupt.increment();
+            return Optional.empty();
+        }
+        // A different key with the same hash, very unlikely.
+        if (!key.equals(new String(k, StandardCharsets.UTF_8))) return Optional.empty();
+
+        Optional<byte[]> value = DiskCache.inflate(stored, rawLength);
+        if (value.isEmpty()) corrupt.increment();
+        return value;
+    }
+
+    @Override
+    public void put(String key, byte[] value, Duration ttl) {
+        long expiresAt = System.currentTimeMillis() + ttl.toMillis();
+        writer.execute(() -> write(key, value, expiresAt));
+    }
+
+    private void write(String key, byte[] value, long expiresAt) {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        if (k.length > DiskCache.MAX_KEY_LENGTH || value.length > DiskCache.MAX_RAW_LENGTH) return;
+        byte[] stored = DiskCache.deflate(value);
+        ByteBuffer b = ByteBuffer.allocate(HEADER_LENGTH + k.length + stored.length);
+        b.putInt(MAGIC).putLong(expiresAt).putInt(k.length).putInt(value.length).putLong(DiskCache.checksum(k, stored, value.length, expiresAt));
+        b.put(k).put(stored);
+
+        Path target = path(key);
+        Path temp = target.resolveSibling(target.getFileName() + "." + UUID.randomUUID() + TEMP_SUFFIX);
+        try {
+            Files.createDirectories(target.getParent());
+            Files.write(temp, b.array());
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            writes.increment();
+        } catch (AtomicMoveNotSupportedException e) {
+            // Without an atomic rename, readers could see a partial file.
+            logger.warning("The shared cache directory " + dir + " does not support atomic renames, entries are not stored");
+            deleteQuietly(temp);
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Cannot write shared cache entry " + key, e);
+            deleteQuietly(temp);
+        }
+    }
+
+    /** The file for the key, spread over subdirectories so none of them gets too large. */
+    private Path path(String key) {
+        String hash = hash(key);
+        return dir.resolve(hash.substring(0, 2)).resolve(hash + SUFFIX);
+    }
+
+    private static String hash(String key) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every jvm has SHA-256
+        }
+    }
+
+    /** Delete expired and leftover temporary files, then the oldest files while the directory is too large. */
+    private void cleanup() {
+        long now = System.currentTimeMillis();
+        List<Map.Entry<Path, BasicFileAttributes>> remaining = new ArrayList<>();
+        long size = 0;
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) files::iterator) {
+                String name = p.getFileName().toString();
+                if (!name.endsWith(SUFFIX) && !name.endsWith(TEMP_SUFFIX)) continue;
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(p, BasicFileAttributes.class);
+                } catch (IOException e) {
+                    continue; // deleted meanwhile
+                }
+                if (name.endsWith(TEMP_SUFFIX)) {
+                    if (now - attributes.lastModifiedTime().toMillis() > TEMP_MAX_AGE.toMillis()) delete(p);
+                } else if (isExpired(p, now)) {
+                    delete(p);
+                } else {
+                    remaining.add(Map.entry(p, attributes));
+                    size += attributes.size();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "Error cleaning up shared cache in " + dir, e);
+            return;
+        }
+
+        if (size <= maxSize) return;
+        long target = maxSize - maxSize / 10;
+        remaining.sort(Comparator.comparing(e -> e.getValue().lastModifiedTime()));
+        for (Map.Entry<Path, BasicFileAttributes> e : remaining) {
+            if (size <= target) break;
+            delete(e.getKey());
+            size -= e.getValue().size();
+        }
+    }
+
+    private boolean isExpired(Path p, long now) {
+        try (InputStream in = Files.newInputStream(p)) {
+            ByteBuffer header = ByteBuffer.wrap(in.readNBytes(12));
+            return header.remaining() < 12 || header.getInt() != MAGIC || header.getLong() <= now;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void delete(Path p) {
+        deleteQuietly(p);
+        deleted.increment();
+    }
+
+    private static void deleteQuietly(Path p) {
+        try {
+            Files.deleteIfExists(p);
+        } catch (IOException e) {
+            // another server may be doing the same, or it will be cleaned up next time.
+        }
+    }
+
+    @Override
+    public void close() {
+        cleaner.shutdownNow();
+        writer.shutdown();
+        try {
+            writer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Metrics.unregister("frontend.cache.shared");
+    }
+
+    private Map<String, Object> getMetrics() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("hits", hits.sum());
+        m.put("misses", misses.sum());
+        m.put("writes", writes.sum());
+        m.put("pendingWrites", writer.getQueue().size());
+        m.put("droppedWrites", dropped.sum());
+        m.put("corrupt", corrupt.sum());
+        m.put("deleted", deleted.sum());
+        return m;
+    }
+}
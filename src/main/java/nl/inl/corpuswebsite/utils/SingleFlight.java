@@ -0,0 +1,66 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * <pre>
+ * Collapses concurrent calls for the same key into a single call.
+ * The first caller for a key performs the work, callers arriving while it is in progress wait for it and receive the same value.
+ * Once the work completes, the key is forgotten, so this is not a cache: the next call performs the work again.
+ *
+ * The value is shared between all callers, so it should be immutable.
+ * </pre>
+ *
+ * @param <K> the key, should implement equals and hashCode.
+ * @param <V> the value
+ */
+public class SingleFlight<K, V> {
+    private final Map<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder collapsed = new LongAdder();
+
+    /**
+     * Get the value for the key, performing the work only if no other thread is already doing so.
+     * Exceptions thrown by the work are rethrown in all callers.
+     */
+    public V run(K key, Supplier<V> work) {
+        calls.increment();
+        CompletableFuture<V> mine = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null) {
+            collapsed.increment();
+            try {
+                return existing.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                throw e;
+            }
+        }
+
+        try {
+            V value = work.get();
+            mine.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("calls", calls.sum());
+        m.put("collapsed", collapsed.sum());
+        m.put("inFlight", inFlight.size());
+        return m;
+    }
+}
@@ -190,6 +190,27 @@ public class StaticFileHandler {
         response.setHeader("Cache-Control", cacheControl);
     }
 
+    /**
+     * Send a 304 Not Modified for generated content, if the client already has this version of it.
+     *
+     * @return true if the 304 was sent, the content should not be written then.
+     */
+    public static boolean checkNotModified(HttpServletRequest request, HttpServletResponse response, String etag) {
+        if (checkCache(request, etag) == CacheCheckResult.NEEDS_CONTENT) return false;
+        sendNotModified(response, etag);
+        return true;
+    }
+
+    /**
+     * Set the ETag of generated content. The client has to revalidate every time (no-cache), as the content may change at any moment.
+     *
+     * @param isPublic If true, shared caches may store the response, otherwise only the browser's private cache.
+     */
+    public static void setETag(HttpServletResponse response, String etag, boolean isPublic) {
+        response.setHeader("ETag", etag);
+        response.setHeader("Cache-Control", (isPublic ? "public" : "private") + ", no-cache");
+    }
+
     /**
      * Send a 304 Not Modified response.
      */
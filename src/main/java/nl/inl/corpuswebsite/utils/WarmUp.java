@@ -0,0 +1,123 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import nl.inl.corpuswebsite.MainServlet;
+import nl.inl.corpuswebsite.utils.GlobalConfig.Keys;
+
+/**
+ * <pre>
+ * Fills the caches on startup, so the first visitors of a corpus don't have to wait for it.
+ *
+ * The corpora are listed from BlackLab, then for each of them (a few at a time) we load
+ * the corpus config, the search.xml and the article and meta stylesheets.
+ * Only corpora and data visible without logging in are loaded.
+ *
+ * Runs in the background, {@link #isReady()} becomes true once it finishes or times out. See {@link Keys#WARMUP}.
+ * </pre>
+ */
+public class WarmUp {
+    private static final Logger logger = Logger.getLogger(WarmUp.class.getName());
+
+    private final MainServlet servlet;
+    private final GlobalConfig config;
+
+    private volatile boolean ready = false;
+    private volatile int total = 0;
+    private final AtomicInteger completed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    public WarmUp(MainServlet servlet, GlobalConfig config) {
+        this.servlet = servlet;
+        this.config = config;
+    }
+
+    /** Start warming up in the background, or become ready immediately if warm-up is disabled. */
+    public void start() {
+        if (!config.getBool(Keys.WARMUP) || !servlet.useCache(null)) {
+            ready = true;
+            return;
+        }
+        Thread t = new Thread(this::run, "blacklab-frontend-warmup");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /** Number of corpora to warm up, and how many of them are done. */
+    public int getTotal() {
+        return total;
+    }
+
+    public int getCompleted() {
+        return completed.get();
+    }
+
+    public int getFailed() {
+        return failed.get();
+    }
+
+    private void run() {
+        long start = System.nanoTime();
+        long timeout = BlackLabHttpClient.parseMillis(config.get(Keys.WARMUP_TIMEOUT), Duration.ofMinutes(2)).toMillis();
+        ExecutorService pool = Executors.newFixedThreadPool(Integer.parseInt(config.get(Keys.WARMUP_THREADS)), r -> {
+            Thread t = new Thread(r, "blacklab-frontend-warmup-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<String> corpora = new BlackLabApi(null, null, config).getCorpusIds().getOrThrow();
+            total = corpora.size();
+            logger.info("Warming up " + total + " corpora");
+            corpora.forEach(corpus -> pool.submit(() -> warmUp(corpus)));
+            pool.shutdown();
+            if (!pool.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+                logger.warning("Warm-up did not finish within " + timeout + "ms (" + completed.get() + " of " + total + " corpora done), continuing without it");
+                pool.shutdownNow();
+            }
+        } catch (QueryException e) {
+            logger.warning("Warm-up skipped, cannot list corpora from BlackLab: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+            ready = true;
+            logger.info("Warm-up finished in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms: " + completed.get() + " corpora, " + failed.get() + " with errors");
+        }
+    }
+
+    private void warmUp(String corpus) {
+        long start = System.nanoTime();
+        try {
+            servlet.getWebsiteConfig(Optional.of(corpus));
+            Result<CorpusConfig, Exception> corpusConfig = new BlackLabApi(null, null, config).getCorpusConfig(corpus);
+            Optional<String> error = corpusConfig.getError().map(Exception::getMessage)
+                    .or(() -> corpusConfig.getResult().flatMap(c -> servlet.getStylesheet(c, "article", null, null).getError().map(Exception::getMessage)))
+                    .or(() -> corpusConfig.getResult().flatMap(c -> servlet.getStylesheet(c, "meta", null, null).getError().map(Exception::getMessage)));
+
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (error.isPresent()) {
+                failed.incrementAndGet();
+                logger.warning("Warm-up of corpus " + corpus + " failed after " + millis + "ms: " + error.get());
+            } else {
+                logger.info("Warmed up corpus " + corpus + " in " + millis + "ms");
+            }
+        } catch (RuntimeException e) {
+            failed.incrementAndGet();
+            logger.log(Level.WARNING, "Warm-up of corpus " + corpus + " failed", e);
+        } finally {
+            completed.incrementAndGet();
+        }
+    }
+}
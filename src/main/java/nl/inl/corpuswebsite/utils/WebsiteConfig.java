@@ -86,6 +86,9 @@ public class WebsiteConfig {
 
     private final Optional<String> corpusId;
 
+    /** Modification time and size of the search.xml, see {@link #getVersion()}. */
+    private final String version;
+
     /** Name to display for this corpus, null if no corpus set or no explicit display name configured */
     private final Optional<String> corpusDisplayName;
     /** Autocomatically computed displayname from the corpus id. Null if no corpus set. */
@@ -127,6 +130,7 @@ public class WebsiteConfig {
      */
     public WebsiteConfig(File configFile, String contextPath, Optional<String> corpusId) throws ConfigurationException {
         this.corpusId = corpusId;
+        this.version = Long.toHexString(configFile.lastModified()) + "-" + Long.toHexString(configFile.length());
         Parameters parameters = new Parameters();
         ConfigurationBuilder<XMLConfiguration> cb = new FileBasedConfigurationBuilder<>(XMLConfiguration.class)
                 .configure(parameters.fileBased()
@@ -201,6 +205,11 @@ public class WebsiteConfig {
         return corpusId;
     }
 
+    /** Identifies the version of the search.xml this was read from, by its modification time and size. */
+    public String getVersion() {
+        return version;
+    }
+
     public String getDisplayName() {
         return corpusDisplayName.orElse(corpusDisplayNameFallback.orElse(""));
     }
@@ -1,30 +1,63 @@
 package nl.inl.corpuswebsite.utils;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.FilterReader;
+import java.io.FilterWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.logging.Logger;
 
 import javax.xml.transform.Source;
-import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamSource;
 
-import net.sf.saxon.s9api.DocumentBuilder;
 import net.sf.saxon.s9api.Message;
 import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.SaxonApiUncheckedException;
 import net.sf.saxon.s9api.Serializer;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XPathExecutable;
+import net.sf.saxon.s9api.XPathSelector;
 import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.XdmItem;
 import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.s9api.XdmValue;
 import net.sf.saxon.s9api.XsltCompiler;
@@ -32,7 +65,8 @@ import net.sf.saxon.s9api.XsltExecutable;
 import net.sf.saxon.s9api.XsltTransformer;
 import net.sf.saxon.lib.ErrorReporter;
 import net.sf.saxon.s9api.XmlProcessingError;
-import org.w3c.dom.Document;
+
+import nl.inl.corpuswebsite.utils.Result.ThrowableSupplier;
 
 
 public class XslTransformer {
@@ -68,65 +102,483 @@ public class XslTransformer {
      */
     private static final Processor PROCESSOR = new Processor(false);
 
+    /** Compiled xpath expressions, see {@link #evaluate(XdmNode, String, Map)}. */
+    private static final Map<String, XPathExecutable> XPATH_CACHE = new ConcurrentHashMap<>();
+
     private final Map<String, Object> params = new HashMap<>();
+    /** The client request's deadline, transformations stop when it passes, see {@link Limit}. */
+    private Deadline deadline = Deadline.NONE;
     private final XsltExecutable executable;
     private final String id;
+    /** SHA-256 of the stylesheet source, see {@link #getCacheKey()}. */
+    private final String hash;
+
+    /** A compiled stylesheet, and the SHA-256 of the source it was compiled from. */
+    private record Compiled(XsltExecutable executable, String hash) {}
+
+    /** The source of a stylesheet, it's read completely before compiling so we can hash it. */
+    private record StylesheetSource(Source source, String hash) {
+        static StylesheetSource of(byte[] xsl, String systemId) {
+            return new StylesheetSource(new StreamSource(new ByteArrayInputStream(xsl), systemId), sha256(xsl));
+        }
+
+        static StylesheetSource of(String xsl) {
+            return new StylesheetSource(new StreamSource(new StringReader(xsl)), sha256(xsl.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        private static String sha256(byte[] bytes) {
+            try {
+                return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e); // every jvm has SHA-256
+            }
+        }
+    }
 
-    private static final Map<String, XsltExecutable> EXECUTABLE_CACHE = new HashMap<>();
+    private static volatile Cache<String, Compiled> EXECUTABLE_CACHE = new Cache<>("xslt.executables", 1_000, null);
     private static boolean useCache = true;
 
-    public static void setUseCache(boolean use) {
-        useCache = use;
+    /** How long the last compilation of a stylesheet took, and how often it was compiled. */
+    private record CompileTime(long millis, long count, boolean failed) {}
+    private static final Map<String, CompileTime> COMPILE_TIMES = new ConcurrentHashMap<>();
+
+    /** In nanoseconds, 0 for no limit, see {@link #setTimeout(Duration)}. */
+    private static volatile long timeout = 0;
+    /** Number of transformations that were stopped, per stylesheet. */
+    private static final Map<String, LongAdder> TIMEOUTS = new ConcurrentHashMap<>();
+
+    static {
+        Metrics.register("xslt.compile", XslTransformer::getCompileMetrics);
+        Metrics.register("xslt.timeouts", XslTransformer::getTimeoutMetrics);
+        Metrics.register("xslt.workers", XslTransformer::getWorkerMetrics);
+    }
+
+    /** Runs transformations that have a time limit, see {@link Limit} and {@link #setWorkers(int, int)}. */
+    private static volatile ThreadPoolExecutor WORKERS = newWorkers(32, 64);
+    /** Number of transformations that were not started because all workers were busy. */
+    private static final LongAdder REJECTED = new LongAdder();
+
+    /** Thrown when a transformation can't be started because all workers are busy and the queue is full, the client may try again later. */
+    public static class BusyException extends SaxonApiException {
+        BusyException(String message) {
+            super(message);
+        }
+    }
+
+    private interface Transformation {
+        void run() throws SaxonApiException;
     }
 
     /**
-     * Compiles and caches an XSLT stylesheet.
+     * <pre>
+     * Stops a transformation that takes too long, so a slow stylesheet (or a huge document) doesn't keep a request waiting indefinitely.
+     * The limit is the smaller of {@link #setTimeout(Duration)} and the time the client request has left (see {@link #setDeadline(Deadline)}).
+     *
+     * Saxon HE can't interrupt a running transformation, so a transformation with a limit runs on a worker thread,
+     * and the request stops waiting for it once the time is up, whether or not the transformation is reading or writing anything.
+     * From then on its output is cut off (so it can't write to a response that is already finished), and the worker is interrupted:
+     * its next read, write or xsl:message fails, which ends it. Until then it occupies a worker, of which there is a limited number.
+     * (Compiling the stylesheets with tracing would let us check the time between instructions, but it makes every transformation slower.)
+     *
+     * The time is also checked whenever the transformation reads its input or writes output,
+     * the same happens when the client disconnects while the output is written to the response.
+     * </pre>
      */
-    private static XsltExecutable compile(String id, Source source) throws SaxonApiException {
-        synchronized (EXECUTABLE_CACHE) {
-            if (useCache && EXECUTABLE_CACHE.containsKey(id)) {
-                return EXECUTABLE_CACHE.get(id);
+    private static class Limit {
+        private final long start = System.nanoTime();
+        /** In nanoseconds, 0 for no limit. */
+        private final long limit;
+        private volatile boolean expired = false;
+        /** Nothing more may be read or written, the request no longer waits for the transformation. */
+        private volatile boolean stopped = false;
+
+        Limit(Deadline request) throws SaxonApiException {
+            Duration own = Duration.ofNanos(timeout > 0 ? timeout : Long.MAX_VALUE);
+            try {
+                long l = request.limit(own).toNanos();
+                limit = l == Long.MAX_VALUE ? 0 : l;
+            } catch (QueryException e) {
+                throw new SaxonApiException("The request took too long, the transformation was not started", e);
+            }
+        }
+
+        void check() throws IOException {
+            if (stopped || Thread.currentThread().isInterrupted()) throw new IOException("Transformation was stopped");
+            if (limit > 0 && System.nanoTime() - start > limit) {
+                expired = true;
+                throw new IOException("Transformation took longer than " + TimeUnit.NANOSECONDS.toMillis(limit) + "ms");
             }
+        }
 
-            XsltCompiler compiler = PROCESSOR.newXsltCompiler();
-            CapturingErrorReporter errorReporter = new CapturingErrorReporter();
-            compiler.setErrorReporter(errorReporter);
+        /** Run the transformation, on a worker thread if there is a limit, so we can stop waiting for it when the time is up. */
+        void run(Transformation transformation) throws SaxonApiException {
+            if (limit == 0) {
+                transformation.run();
+                return;
+            }
 
+            Future<?> running;
+            try {
+                running = WORKERS.submit(() -> {
+                    transformation.run();
+                    return null;
+                });
+            } catch (RejectedExecutionException e) {
+                REJECTED.increment();
+                throw new BusyException("Too many transformations in progress, please try again later");
+            }
             try {
-                XsltExecutable exec = compiler.compile(source);
+                running.get(limit - (System.nanoTime() - start), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                expired = true;
+                stop(running);
+                throw new SaxonApiException("Transformation took longer than " + TimeUnit.NANOSECONDS.toMillis(limit) + "ms", e);
+            } catch (InterruptedException e) {
+                stop(running);
+                Thread.currentThread().interrupt();
+                throw new SaxonApiException("Interrupted while waiting for the transformation", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof SaxonApiException x) throw x;
+                if (e.getCause() instanceof RuntimeException r) throw r;
+                if (e.getCause() instanceof Error err) throw err;
+                throw new SaxonApiException(e.getCause());
+            }
+        }
+
+        /** Cut off the output, waits for a write that is in progress. */
+        private void stop(Future<?> running) {
+            synchronized (this) {
+                stopped = true;
+            }
+            running.cancel(true);
+        }
 
-                if (useCache) {
-                    EXECUTABLE_CACHE.put(id, exec);
+        InputStream wrap(InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    check();
+                    return super.read();
                 }
 
-                return exec;
-            } catch (SaxonApiException e) {
-                // If we captured error details, include them in the exception
-                if (errorReporter.hasErrors()) {
-                    throw new SaxonApiException(errorReporter.getErrorMessages(), e);
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    check();
+                    return super.read(b, off, len);
+                }
+            };
+        }
+
+        Reader wrap(Reader in) {
+            return new FilterReader(in) {
+                @Override
+                public int read() throws IOException {
+                    check();
+                    return super.read();
                 }
-                throw e;
+
+                @Override
+                public int read(char[] b, int off, int len) throws IOException {
+                    check();
+                    return super.read(b, off, len);
+                }
+            };
+        }
+
+        OutputStream wrap(OutputStream out) {
+            return new FilterOutputStream(out) {
+                @Override
+                public void write(int b) throws IOException {
+                    synchronized (Limit.this) {
+                        check();
+                        out.write(b);
+                    }
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    synchronized (Limit.this) {
+                        check();
+                        out.write(b, off, len);
+                    }
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    synchronized (Limit.this) {
+                        check();
+                        out.flush();
+                    }
+                }
+            };
+        }
+
+        Writer wrap(Writer out) {
+            return new FilterWriter(out) {
+                @Override
+                public void write(int c) throws IOException {
+                    synchronized (Limit.this) {
+                        check();
+                        super.write(c);
+                    }
+                }
+
+                @Override
+                public void write(char[] cbuf, int off, int len) throws IOException {
+                    synchronized (Limit.this) {
+                        check();
+                        super.write(cbuf, off, len);
+                    }
+                }
+
+                @Override
+                public void write(String str, int off, int len) throws IOException {
+                    synchronized (Limit.this) {
+                        check();
+                        super.write(str, off, len);
+                    }
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    synchronized (Limit.this) {
+                        check();
+                        super.flush();
+                    }
+                }
+            };
+        }
+    }
+
+    public static void setUseCache(boolean use) {
+        useCache = use;
+    }
+
+    /**
+     * @param maxEntries maximum number of compiled stylesheets to keep.
+     * @param ttl how long to keep compiled stylesheets, so changes to files on disk are picked up. Zero to keep them until they're evicted.
+     */
+    public static synchronized void setUseCache(boolean use, int maxEntries, Duration ttl) {
+        useCache = use;
+        EXECUTABLE_CACHE = new Cache<>("xslt.executables", maxEntries, ttl);
+    }
+
+    /**
+     * Bound the number of transformations that run at the same time (see {@link Limit}),
+     * transformations that can't be started right away wait in a queue, and fail with a {@link BusyException} when it is full.
+     * Transformations that are already running or queued finish on the previous workers.
+     * @param threads maximum number of transformations that run at the same time.
+     * @param queue maximum number of transformations waiting for a worker.
+     */
+    public static void setWorkers(int threads, int queue) {
+        ThreadPoolExecutor previous = WORKERS;
+        WORKERS = newWorkers(threads, queue);
+        previous.shutdown();
+    }
+
+    private static ThreadPoolExecutor newWorkers(int threads, int queue) {
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                queue > 0 ? new ArrayBlockingQueue<>(queue) : new SynchronousQueue<>(),
+                r -> {
+                    Thread t = new Thread(r, "xslt-worker");
+                    t.setDaemon(true);
+                    return t;
+                });
+        workers.allowCoreThreadTimeOut(true);
+        return workers;
+    }
+
+    private static Map<String, Object> getWorkerMetrics() {
+        ThreadPoolExecutor workers = WORKERS;
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("threads", workers.getMaximumPoolSize());
+        m.put("active", workers.getActiveCount());
+        m.put("queued", workers.getQueue().size());
+        m.put("rejected", REJECTED.sum());
+        return m;
+    }
+
+    /**
+     * Limit how long a single transformation may take, after which it fails. See {@link Limit} for how this is enforced.
+     * @param limit zero for no limit.
+     */
+    public static void setTimeout(Duration limit) {
+        timeout = limit.toNanos();
+    }
+
+    /** Number of transformations that took too long, per stylesheet, so slow stylesheets can be found. */
+    private static Map<String, Object> getTimeoutMetrics() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        TIMEOUTS.forEach((id, count) -> m.put(id, count.sum()));
+        return m;
+    }
+
+    /**
+     * Compiles and caches an XSLT stylesheet.
+     * The cache doesn't lock when the stylesheet is already compiled.
+     * Different stylesheets are compiled concurrently (e.g. for every corpus after a restart),
+     * threads that need a stylesheet that is being compiled wait for that compilation instead of starting their own.
+     */
+    private static Compiled compile(String id, ThrowableSupplier<StylesheetSource, IOException> source) throws SaxonApiException {
+        return useCache ? EXECUTABLE_CACHE.get(id, __ -> timedCompile(id, source)) : timedCompile(id, source);
+    }
+
+    /**
+     * Compile the cached stylesheets loaded from files again, e.g. because they changed on disk.
+     * The new version replaces the old one once it's compiled, until then the old one is used.
+     * If the file was removed the stylesheet is removed from the cache, if it no longer compiles the old version is kept.
+     * @param files which files to recompile, called with their absolute path.
+     */
+    public static void recompile(Predicate<Path> files) {
+        Cache<String, Compiled> cache = EXECUTABLE_CACHE;
+        for (String id : cache.keys()) {
+            Path path;
+            try {
+                path = Paths.get(id);
+            } catch (InvalidPathException e) {
+                continue; // not a file, e.g. a stylesheet from BlackLab.
+            }
+            if (!path.isAbsolute() || !files.test(path)) continue;
+
+            if (!Files.isReadable(path)) {
+                cache.invalidate(id);
+                continue;
+            }
+            try {
+                cache.put(id, timedCompile(id, () -> StylesheetSource.of(Files.readAllBytes(path), path.toUri().toString())));
+                logger.info("Recompiled stylesheet " + id);
+            } catch (SaxonApiException e) {
+                logger.warning("Stylesheet " + id + " changed but can't be compiled, keeping the previous version: " + e.getMessage());
+            }
+        }
+    }
+
+    /** Read and compile the stylesheet, and record how long it took, see {@link #getCompileMetrics()}. */
+    private static Compiled timedCompile(String id, ThrowableSupplier<StylesheetSource, IOException> source) throws SaxonApiException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            StylesheetSource s = source.apply();
+            Compiled compiled = new Compiled(compile(s.source()), s.hash());
+            failed = false;
+            return compiled;
+        } catch (IOException e) {
+            throw new SaxonApiException("Error reading stylesheet " + id + ": " + e.getMessage(), e);
+        } finally {
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            COMPILE_TIMES.merge(id, new CompileTime(millis, 1, failed), (a, b) -> new CompileTime(b.millis, a.count + b.count, b.failed));
+            logger.fine("Compiled stylesheet " + id + " in " + millis + "ms");
+        }
+    }
+
+    /** Compile time per stylesheet that is currently cached (or failed to compile), slowest first. */
+    private static Map<String, Object> getCompileMetrics() {
+        Set<String> cached = EXECUTABLE_CACHE.keys();
+        // Forget stylesheets that are no longer cached, so this doesn't grow with every corpus ever seen.
+        COMPILE_TIMES.entrySet().removeIf(e -> !e.getValue().failed && !cached.contains(e.getKey()));
+        Map<String, Object> m = new LinkedHashMap<>();
+        COMPILE_TIMES.entrySet().stream()
+                .sorted((a, b) -> Long.compare(b.getValue().millis, a.getValue().millis))
+                .forEach(e -> m.put(e.getKey(), Map.of("millis", e.getValue().millis, "count", e.getValue().count, "failed", e.getValue().failed)));
+        return m;
+    }
+
+    private static XsltExecutable compile(Source source) throws SaxonApiException {
+        XsltCompiler compiler = PROCESSOR.newXsltCompiler();
+        CapturingErrorReporter errorReporter = new CapturingErrorReporter();
+        compiler.setErrorReporter(errorReporter);
+
+        try {
+            return compiler.compile(source);
+        } catch (SaxonApiException e) {
+            // If we captured error details, include them in the exception
+            if (errorReporter.hasErrors()) {
+                throw new SaxonApiException(errorReporter.getErrorMessages(), e);
             }
+            throw e;
         }
     }
 
     public XslTransformer(File stylesheet) throws SaxonApiException {
-        this.id = stylesheet.getAbsolutePath();
-        this.executable = compile(this.id, new StreamSource(stylesheet));
+        this(stylesheet.getAbsolutePath(), compile(stylesheet.getAbsolutePath(), () -> StylesheetSource.of(Files.readAllBytes(stylesheet.toPath()), stylesheet.toURI().toString())));
     }
 
     public XslTransformer(String id, URI uri) throws SaxonApiException {
-        this.id = id;
-        this.executable = compile(this.id, new StreamSource(uri.toString()));
+        this(id, compile(id, () -> {
+            try (InputStream in = uri.toURL().openStream()) {
+                return StylesheetSource.of(in.readAllBytes(), uri.toString());
+            }
+        }));
     }
 
     public XslTransformer(String id, Reader sheet) throws SaxonApiException {
-        this.id = id;
-        this.executable = compile(this.id, new StreamSource(sheet));
+        this(id, compile(id, () -> {
+            StringWriter xsl = new StringWriter();
+            sheet.transferTo(xsl);
+            return StylesheetSource.of(xsl.toString());
+        }));
     }
 
     public XslTransformer(String id, String xsl) throws SaxonApiException {
-        this(id, new StringReader(xsl));
+        this(id, compile(id, () -> StylesheetSource.of(xsl)));
+    }
+
+    private XslTransformer(String id, Compiled compiled) {
+        this.id = id;
+        this.executable = compiled.executable();
+        this.hash = compiled.hash();
+    }
+
+    private XslTransformer(String id, XsltExecutable executable, String hash) {
+        this.id = id;
+        this.executable = executable;
+        this.hash = hash;
+    }
+
+    /**
+     * Get a transformer for the same (compiled) stylesheet, without any parameters set.
+     * Transformers hold their own parameters and are not thread-safe, so shared instances should be copied before use.
+     */
+    public XslTransformer copy() {
+        return new XslTransformer(id, executable, hash);
+    }
+
+    /**
+     * Identifies the version of the stylesheet, for caching the output of transformations (in memory, on disk, and in ETags).
+     * This is the hash of the stylesheet source: it changes when the stylesheet changes, and is the same after a restart and on every server.
+     * (Files included by the stylesheet aren't part of it.)
+     */
+    public String getCacheKey() {
+        return id + "@" + hash;
+    }
+
+    /**
+     * Parse xml into a tree that can be passed to transformations (as source or parameter) and queried with xpath, without parsing it again.
+     * The tree is immutable, so it can be shared between threads.
+     */
+    public static XdmNode parse(String xml) throws SaxonApiException {
+        return PROCESSOR.newDocumentBuilder().build(new StreamSource(new StringReader(xml)));
+    }
+
+    /**
+     * Evaluate an xpath expression against a parsed document.
+     * @param variables values for the variables in the expression (as strings), the expression is compiled once per set of variable names.
+     * @return the string value of the first item, empty if the expression selects nothing.
+     */
+    public static Optional<String> evaluate(XdmNode node, String xpath, Map<String, String> variables) throws SaxonApiException {
+        String key = variables.keySet() + xpath;
+        XPathExecutable executable = XPATH_CACHE.get(key);
+        if (executable == null) {
+            XPathCompiler compiler = PROCESSOR.newXPathCompiler();
+            for (String name : variables.keySet()) compiler.declareVariable(new QName(name));
+            executable = compiler.compile(xpath);
+            XPATH_CACHE.putIfAbsent(key, executable);
+        }
+
+        XPathSelector selector = executable.load();
+        selector.setContextItem(node);
+        for (Map.Entry<String, String> v : variables.entrySet()) selector.setVariable(new QName(v.getKey()), new XdmAtomicValue(v.getValue()));
+        return Optional.ofNullable(selector.evaluateSingle()).map(XdmItem::getStringValue);
     }
 
     public String transform(String source) throws SaxonApiException, IOException {
@@ -136,12 +588,47 @@ public class XslTransformer {
         }
     }
 
+    /** Transform a document that was already parsed, see {@link #parse(String)}. */
+    public String transform(XdmNode source) throws SaxonApiException, IOException {
+        try (StringWriter result = new StringWriter()) {
+            Limit limit = new Limit(deadline);
+            transform(source.asSource(), PROCESSOR.newSerializer(limit.wrap(result)), limit);
+            return result.toString();
+        }
+    }
+
+    /** Transform a document that was already parsed, writing the result to the output stream as it is produced (encoded as UTF-8). */
+    public <O extends OutputStream> O streamTransform(XdmNode source, O result) throws SaxonApiException {
+        Limit limit = new Limit(deadline);
+        transform(source.asSource(), PROCESSOR.newSerializer(limit.wrap(result)), limit);
+        return result;
+    }
+
     public <W extends Writer> W streamTransform(Reader source, W result) throws SaxonApiException {
+        Limit limit = new Limit(deadline);
+        transform(new StreamSource(limit.wrap(source)), PROCESSOR.newSerializer(limit.wrap(result)), limit);
+        return result;
+    }
+
+    /**
+     * Transform the source, writing the result to the output stream as it is produced (encoded as UTF-8).
+     * The encoding of the source is detected by the xml parser. Neither stream is closed.
+     */
+    public <O extends OutputStream> O streamTransform(InputStream source, O result) throws SaxonApiException {
+        Limit limit = new Limit(deadline);
+        transform(new StreamSource(limit.wrap(source)), PROCESSOR.newSerializer(limit.wrap(result)), limit);
+        return result;
+    }
+
+    /** @param limit checked by the source and serializer, see {@link Limit}. */
+    private void transform(Source source, Serializer serializer, Limit limit) throws SaxonApiException {
         XsltTransformer transformer = executable.load();
 
         // Capture xsl:message output
         StringBuilder capturedMessages = new StringBuilder();
         Consumer<Message> messageHandler = (Message message) -> {
+            // A stopped transformation that isn't reading or writing may still be sending messages, end it here.
+            if (limit.stopped || Thread.currentThread().isInterrupted()) throw new SaxonApiUncheckedException(new SaxonApiException("Transformation was stopped"));
             String content = message.getContent().getStringValue();
             if (capturedMessages.length() > 0) {
                 capturedMessages.append("\n");
@@ -151,29 +638,31 @@ public class XslTransformer {
         };
         transformer.setMessageHandler(messageHandler);
 
-        // Set parameters
+        // Set parameters, parsed documents (see parse()) are passed as-is.
         for (Map.Entry<String, Object> entry : params.entrySet()) {
-            if (entry.getValue() instanceof Document d) {
-                DocumentBuilder db = PROCESSOR.newDocumentBuilder();
-                XdmNode xdmDoc = db.build(new DOMSource(d));
-                transformer.setParameter(new QName(entry.getKey()), xdmDoc);
+            if (entry.getValue() instanceof XdmValue v) {
+                transformer.setParameter(new QName(entry.getKey()), v);
             } else {
                 transformer.setParameter(new QName(entry.getKey()), XdmValue.makeValue(entry.getValue()));
             }
         }
 
         // Set up source and destination
-        StreamSource streamSource = new StreamSource(source);
-        transformer.setSource(streamSource);
+        transformer.setSource(source);
 
-        Serializer serializer = PROCESSOR.newSerializer(result);
         serializer.setOutputProperty(Serializer.Property.ENCODING, "UTF-8");
         serializer.setOutputProperty(Serializer.Property.INDENT, "yes");
         transformer.setDestination(serializer);
 
         try {
-            transformer.transform();
-        } catch (SaxonApiException e) {
+            limit.run(transformer::transform);
+        } catch (SaxonApiException | RuntimeException e) {
+            if (limit.expired) {
+                TIMEOUTS.computeIfAbsent(id, __ -> new LongAdder()).increment();
+                logger.warning("Stopped transformation with stylesheet " + id + ", it took longer than " + TimeUnit.NANOSECONDS.toMillis(limit.limit) + "ms");
+                throw new SaxonApiException("The transformation took too long and was stopped (stylesheet " + id + ")", e);
+            }
+            if (e instanceof RuntimeException r) throw r;
             // Include captured messages in the exception
             String messages = capturedMessages.toString();
             if (!messages.isEmpty() && !messages.equals(e.getMessage())) {
@@ -181,8 +670,6 @@ public class XslTransformer {
             }
             throw e;
         }
-
-        return result;
     }
 
     public void addParameter(String key, Object value) {
@@ -192,4 +679,9 @@ public class XslTransformer {
     public void clearParameters() {
         params.clear();
     }
+
+    /** Stop transformations once the client request's deadline passes, if that's sooner than {@link #setTimeout(Duration)}. */
+    public void setDeadline(Deadline deadline) {
+        this.deadline = deadline;
+    }
 }
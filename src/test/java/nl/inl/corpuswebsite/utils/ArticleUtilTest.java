@@ -0,0 +1,86 @@
+package nl.inl.corpuswebsite.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+public class ArticleUtilTest {
+
+    /** Returns at most a few characters per read, so tags are split between reads. */
+    private static class ChunkedReader extends FilterReader {
+        private final int chunk;
+
+        ChunkedReader(Reader in, int chunk) {
+            super(in);
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int read(char[] buf, int offset, int length) throws IOException {
+            return super.read(buf, offset, Math.min(length, chunk));
+        }
+    }
+
+    private static boolean containsXmlTag(String text) {
+        return ArticleUtil.containsXmlTag(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String plainText(Reader in) throws IOException {
+        StringWriter out = new StringWriter();
+        ArticleUtil.writePlainText(in, out);
+        return out.toString();
+    }
+
+    @Test
+    public void xmlTagsAreDetected() {
+        assertTrue(containsXmlTag("text <p>more"));
+        assertTrue(containsXmlTag("<br/>"));
+        assertTrue(containsXmlTag("<tei:w lemma=\"be\" xml:id=\"w1\">is</tei:w>"));
+        assertTrue(containsXmlTag("<hl>hit</hl> <s>"));
+    }
+
+    @Test
+    public void plainTextIsNotXml() {
+        assertFalse(containsXmlTag("just text, 1 < 2 and 3 > 2"));
+        assertFalse(containsXmlTag("<hl>hit</hl>"));
+        assertFalse(containsXmlTag("<hl.x>"));
+        assertFalse(containsXmlTag("<?xml version=\"1.0\"?><blacklabResponse>text"));
+        assertFalse(containsXmlTag("<p unterminated"));
+        assertFalse(containsXmlTag("<p attr='single'>"));
+        assertFalse(containsXmlTag(""));
+    }
+
+    @Test
+    public void plainTextIsEscaped() throws IOException {
+        assertEquals("<pre>a &lt; b &amp;&amp; c &gt; d &lt;p&gt;</pre>", plainText(new StringReader("a < b && c > d <p>")));
+    }
+
+    @Test
+    public void hitTagsBecomeSpans() throws IOException {
+        assertEquals("<pre>a <span class=\"hl\">hit</span> &lt;h</pre>", plainText(new StringReader("a <hl>hit</hl> <h")));
+    }
+
+    @Test
+    public void hitTagsSplitBetweenReadsAreReplaced() throws IOException {
+        String text = "a <hl>hit</hl> &<b> <hl>x</hl><";
+        String expected = "<pre>a <span class=\"hl\">hit</span> &amp;&lt;b&gt; <span class=\"hl\">x</span>&lt;</pre>";
+        for (int chunk = 1; chunk <= text.length(); ++chunk) {
+            assertEquals(expected, plainText(new ChunkedReader(new StringReader(text), chunk)), "chunk " + chunk);
+        }
+    }
+
+    @Test
+    public void hitTagAtTheBufferBoundaryIsReplaced() throws IOException {
+        String padding = "x".repeat(8190);
+        assertEquals("<pre>" + padding + "<span class=\"hl\">hit</span></pre>", plainText(new StringReader(padding + "<hl>hit</hl>")));
+    }
+}
@@ -0,0 +1,110 @@
+package nl.inl.corpuswebsite.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+public class CacheTest {
+    private static final Duration MINUTE = Duration.ofMinutes(1);
+
+    @Test
+    public void leastRecentlyUsedEntriesAreEvicted() throws InterruptedException {
+        Cache<Integer, Integer> cache = new Cache<>("test.cache.lru", 10, MINUTE);
+        for (int i = 0; i < 10; i++) {
+            cache.put(i, i);
+            Thread.sleep(2);
+        }
+        cache.getIfPresent(0); // 0 is now used more recently than the others.
+        Thread.sleep(2);
+        cache.put(10, 10);
+
+        // Down to 90% of the maximum: the two least recently used go, the entry that was just added stays.
+        assertEquals(Set.of(0, 3, 4, 5, 6, 7, 8, 9, 10), cache.keys());
+    }
+
+    @Test
+    public void evictionUsesTheWeight() {
+        Cache<String, String> cache = new Cache<>("test.cache.weight", 10, MINUTE, String::length);
+        cache.put("small", "abc");
+        cache.put("large", "0123456789a");
+        assertEquals(Set.of("large"), cache.keys());
+    }
+
+    @Test
+    public void expiredEntriesAreLoadedAgain() throws InterruptedException {
+        Cache<String, Integer> cache = new Cache<>("test.cache.ttl", 10, Duration.ofMillis(20));
+        AtomicInteger calls = new AtomicInteger();
+        assertEquals(1, (int) cache.get("key", k -> calls.incrementAndGet()));
+        assertEquals(1, (int) cache.get("key", k -> calls.incrementAndGet()));
+        Thread.sleep(50);
+        assertEquals(Optional.empty(), cache.getIfPresent("key"));
+        assertEquals(2, (int) cache.get("key", k -> calls.incrementAndGet()));
+    }
+
+    @Test
+    public void loaderExceptionsAreThrownAndNotCached() throws IOException {
+        Cache<String, String> cache = new Cache<>("test.cache.error", 10, MINUTE);
+        IOException e = assertThrows(IOException.class, () -> cache.get("key", k -> {
+            throw new IOException("failed");
+        }));
+        assertEquals("failed", e.getMessage());
+        assertEquals("loaded", cache.get("key", k -> "loaded"));
+    }
+
+    @Test
+    public void invalidateIfRemovesMatchingKeys() {
+        Cache<String, String> cache = new Cache<>("test.cache.invalidate", 10, MINUTE);
+        cache.put("corpus/a", "a");
+        cache.put("corpus/b", "b");
+        cache.put("other/a", "a");
+        cache.invalidateIf(k -> k.startsWith("corpus/"));
+        assertEquals(Set.of("other/a"), cache.keys());
+    }
+
+    @Test
+    public void valueLoadedBeforeInvalidationIsNotStored() throws Exception {
+        Cache<String, String> cache = new Cache<>("test.cache.generation", 10, MINUTE);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        CompletableFuture<String> load = CompletableFuture.supplyAsync(() -> cache.get("key", k -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return "outdated";
+        }));
+        started.await();
+        cache.invalidateIf(k -> true);
+        release.countDown();
+
+        // The caller still gets its value, but the next one loads again.
+        assertEquals("outdated", load.get(10, TimeUnit.SECONDS));
+        assertEquals(Optional.empty(), cache.getIfPresent("key"));
+    }
+
+    @Test
+    public void putWithOldGenerationIsIgnored() {
+        Cache<String, String> cache = new Cache<>("test.cache.put", 10, MINUTE);
+        long generation = cache.generation();
+        cache.clear();
+        cache.put("key", "outdated", generation);
+        assertTrue(cache.keys().isEmpty());
+
+        cache.put("key", "current", cache.generation());
+        assertEquals(Optional.of("current"), cache.getIfPresent("key"));
+    }
+}
@@ -0,0 +1,135 @@
+package nl.inl.corpuswebsite.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import nl.inl.corpuswebsite.utils.ConditionalCache.Aged;
+import nl.inl.corpuswebsite.utils.ConditionalCache.Entry;
+import nl.inl.corpuswebsite.utils.ConditionalCache.Loader;
+
+public class ConditionalCacheTest {
+    private static final Duration MINUTE = Duration.ofMinutes(1);
+
+    private final ConditionalCache<String> cache = new ConditionalCache<>("test.conditional", 100);
+
+    private static Loader<String, QueryException> returning(String value, AtomicInteger calls) {
+        return stale -> {
+            calls.incrementAndGet();
+            return Result.success(new Entry<>(value, List.of()));
+        };
+    }
+
+    private static Loader<String, QueryException> failing(AtomicInteger calls) {
+        return stale -> {
+            calls.incrementAndGet();
+            return Result.error(new QueryException(502, "BlackLab is down"));
+        };
+    }
+
+    @Test
+    public void freshEntryIsNotLoadedAgain() {
+        AtomicInteger calls = new AtomicInteger();
+        assertEquals("a", cache.get("key", MINUTE, returning("a", calls)).getResult().orElseThrow());
+        assertEquals("a", cache.get("key", MINUTE, returning("b", calls)).getResult().orElseThrow());
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void expiredEntryIsRevalidatedWithTheStaleEntry() {
+        Entry<String> first = new Entry<>("a", List.of());
+        cache.get("key", Duration.ZERO, stale -> Result.success(first));
+
+        List<Optional<Entry<String>>> seen = new ArrayList<>();
+        String value = cache.get("key", MINUTE, (Optional<Entry<String>> stale) -> {
+            seen.add(stale);
+            return Result.<Entry<String>, QueryException>success(stale.orElseThrow()); // 304, still up to date.
+        }).getResult().orElseThrow();
+
+        assertEquals("a", value);
+        assertEquals(1, seen.size());
+        assertSame(first, seen.get(0).orElseThrow());
+    }
+
+    @Test
+    public void errorsAreNotCached() {
+        AtomicInteger calls = new AtomicInteger();
+        assertTrue(cache.get("key", MINUTE, failing(calls)).hasError());
+        assertEquals("a", cache.get("key", MINUTE, returning("a", calls)).getResult().orElseThrow());
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void staleWhileRevalidateReturnsStaleAndRefreshes() {
+        AtomicInteger calls = new AtomicInteger();
+        cache.get("key", Duration.ZERO, returning("old", calls));
+
+        List<Runnable> background = new ArrayList<>();
+        Aged<String> aged = cache.get("key", MINUTE, MINUTE, Duration.ZERO, failing(calls), returning("new", calls), background::add)
+                .getResult().orElseThrow();
+        assertEquals("old", aged.value);
+        assertTrue(aged.stale);
+        assertEquals(1, background.size(), "one background revalidation");
+        assertEquals(1, calls.get(), "the request's own loader is not used");
+
+        background.forEach(Runnable::run);
+        Aged<String> refreshed = cache.get("key", MINUTE, MINUTE, Duration.ZERO, failing(calls), failing(calls), background::add)
+                .getResult().orElseThrow();
+        assertEquals("new", refreshed.value);
+        assertFalse(refreshed.stale);
+    }
+
+    @Test
+    public void staleIfErrorReturnsStaleWhenLoadingFails() {
+        AtomicInteger calls = new AtomicInteger();
+        cache.get("key", Duration.ZERO, returning("old", calls));
+
+        Result<Aged<String>, QueryException> r = cache.get("key", MINUTE, Duration.ZERO, MINUTE, failing(calls), failing(calls), Runnable::run);
+        assertEquals("old", r.getResult().orElseThrow().value);
+        assertTrue(r.getResult().orElseThrow().stale);
+    }
+
+    @Test
+    public void errorIsReturnedWhenStaleIfErrorHasPassed() {
+        AtomicInteger calls = new AtomicInteger();
+        cache.get("key", Duration.ZERO, returning("old", calls));
+
+        Result<Aged<String>, QueryException> r = cache.get("key", MINUTE, Duration.ZERO, Duration.ZERO, failing(calls), failing(calls), Runnable::run);
+        assertTrue(r.hasError());
+        assertEquals(502, r.getError().orElseThrow().getHttpStatusCode());
+    }
+
+    @Test
+    public void invalidatedEntriesAreLoadedAgain() {
+        AtomicInteger calls = new AtomicInteger();
+        cache.get("corpus/doc", MINUTE, returning("a", calls));
+        cache.get("other/doc", MINUTE, returning("a", calls));
+        cache.invalidateIf(k -> k.startsWith("corpus/"));
+
+        assertEquals(Optional.empty(), cache.getFresh("corpus/doc"));
+        assertTrue(cache.getFresh("other/doc").isPresent());
+        assertEquals("b", cache.get("corpus/doc", MINUTE, returning("b", calls)).getResult().orElseThrow());
+    }
+
+    @Test
+    public void loadThatStartedBeforeInvalidationIsNotStored() {
+        AtomicInteger calls = new AtomicInteger();
+        String value = cache.get("key", MINUTE, stale -> {
+            calls.incrementAndGet();
+            cache.invalidateIf(k -> true); // e.g. the corpus was indexed again while we were loading.
+            return Result.success(new Entry<>("outdated", List.of()));
+        }).getResult().orElseThrow();
+
+        assertEquals("outdated", value);
+        assertEquals(Optional.empty(), cache.getFresh("key"));
+    }
+}
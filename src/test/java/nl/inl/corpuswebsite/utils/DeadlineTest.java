@@ -0,0 +1,54 @@
+package nl.inl.corpuswebsite.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.Optional;
+
+import jakarta.servlet.http.HttpServletResponse;
+
+import org.junit.jupiter.api.Test;
+
+public class DeadlineTest {
+
+    @Test
+    public void noDeadlineKeepsTheTimeout() throws QueryException {
+        Duration timeout = Duration.ofSeconds(30);
+        assertEquals(timeout, Deadline.NONE.limit(timeout));
+        assertEquals(Optional.empty(), Deadline.NONE.remaining());
+    }
+
+    @Test
+    public void withoutRequestThereIsNoDeadline() {
+        assertSame(Deadline.NONE, Deadline.of(null));
+    }
+
+    @Test
+    public void shorterTimeoutIsKept() throws QueryException {
+        Duration timeout = Duration.ofSeconds(1);
+        assertEquals(timeout, Deadline.after(Duration.ofHours(1)).limit(timeout));
+    }
+
+    @Test
+    public void remainingBudgetLimitsLongerTimeout() throws QueryException {
+        Deadline deadline = Deadline.after(Duration.ofSeconds(10));
+        Duration limit = deadline.limit(Duration.ofHours(1));
+        assertTrue(limit.compareTo(Duration.ofSeconds(10)) <= 0, "limit " + limit);
+        assertTrue(limit.compareTo(Duration.ofSeconds(5)) > 0, "limit " + limit);
+
+        Duration remaining = deadline.remaining().orElseThrow();
+        assertTrue(remaining.compareTo(Duration.ofSeconds(10)) <= 0 && !remaining.isZero(), "remaining " + remaining);
+    }
+
+    @Test
+    public void spentBudgetFailsWithGatewayTimeout() throws InterruptedException {
+        Deadline deadline = Deadline.after(Duration.ofMillis(1));
+        Thread.sleep(10);
+        QueryException e = assertThrows(QueryException.class, () -> deadline.limit(Duration.ofSeconds(1)));
+        assertEquals(HttpServletResponse.SC_GATEWAY_TIMEOUT, e.getHttpStatusCode());
+        assertEquals(Optional.of(Duration.ZERO), deadline.remaining());
+    }
+}
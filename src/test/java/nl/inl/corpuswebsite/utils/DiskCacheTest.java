@@ -0,0 +1,131 @@
+package nl.inl.corpuswebsite.utils;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class DiskCacheTest {
+    private static final Duration MINUTE = Duration.ofMinutes(1);
+    private static final int SEGMENT_SIZE = 1024 * 1024;
+    private static final byte[] VALUE = "<doc>some contents, some contents, some contents</doc>".getBytes(StandardCharsets.UTF_8);
+
+    private Path dir;
+
+    @BeforeEach
+    public void createDir() throws IOException {
+        dir = Files.createTempDirectory("diskcache");
+    }
+
+    @AfterEach
+    public void deleteDir() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path p : files.sorted(Comparator.reverseOrder()).toList()) Files.delete(p);
+        }
+    }
+
+    private DiskCache open() throws IOException {
+        return new DiskCache(dir, 4L * SEGMENT_SIZE, SEGMENT_SIZE);
+    }
+
+    /** Overwrite bytes of the first segment, where the first record starts at offset 0. */
+    private void overwrite(int offset, byte[] bytes) throws IOException {
+        try (FileChannel c = FileChannel.open(dir.resolve("segment-00000001.dat"), StandardOpenOption.WRITE)) {
+            c.write(ByteBuffer.wrap(bytes), offset);
+        }
+    }
+
+    /** Store the key, corrupt the first record, and check the reopened cache doesn't return it. */
+    private void assertIgnoredAfter(int offset, byte[] bytes) throws IOException {
+        DiskCache cache = open();
+        cache.put("key", VALUE, MINUTE);
+        cache.close();
+        overwrite(offset, bytes);
+
+        DiskCache reopened = open();
+        assertEquals(Optional.empty(), reopened.get("key"));
+        reopened.close();
+    }
+
+    @Test
+    public void deflatedValueCanBeInflated() {
+        byte[] stored = DiskCache.deflate(VALUE);
+        assertArrayEquals(VALUE, DiskCache.inflate(stored, VALUE.length).orElseThrow());
+        assertEquals(Optional.empty(), DiskCache.inflate(stored, VALUE.length + 1));
+        assertEquals(Optional.empty(), DiskCache.inflate(new byte[] {1, 2, 3, 4}, VALUE.length));
+    }
+
+    @Test
+    public void checksumCoversTheHeaderFields() {
+        byte[] key = "key".getBytes(StandardCharsets.UTF_8);
+        long crc = DiskCache.checksum(key, VALUE, 100, 1000L);
+        assertTrue(crc != DiskCache.checksum(key, VALUE, 101, 1000L));
+        assertTrue(crc != DiskCache.checksum(key, VALUE, 100, 1001L));
+    }
+
+    @Test
+    public void valuesSurviveReopening() throws IOException {
+        DiskCache cache = open();
+        cache.put("key", VALUE, MINUTE);
+        cache.put("empty", new byte[0], MINUTE);
+        assertArrayEquals(VALUE, cache.get("key").orElseThrow());
+        assertEquals(Optional.empty(), cache.get("other"));
+        cache.close();
+
+        DiskCache reopened = open();
+        assertArrayEquals(VALUE, reopened.get("key").orElseThrow());
+        assertArrayEquals(new byte[0], reopened.get("empty").orElseThrow());
+        reopened.close();
+    }
+
+    @Test
+    public void expiredValuesAreNotReturned() throws IOException, InterruptedException {
+        DiskCache cache = open();
+        cache.put("key", VALUE, Duration.ofMillis(1));
+        Thread.sleep(10);
+        assertEquals(Optional.empty(), cache.get("key"));
+        cache.close();
+    }
+
+    @Test
+    public void oversizedKeysAreNotStored() throws IOException {
+        DiskCache cache = open();
+        String key = "k".repeat(DiskCache.MAX_KEY_LENGTH + 1);
+        cache.put(key, VALUE, MINUTE);
+        assertEquals(Optional.empty(), cache.get(key));
+        cache.close();
+    }
+
+    @Test
+    public void corruptValueIsIgnored() throws IOException {
+        // Header (32 bytes), the key (3 bytes), then the first byte of the stored value.
+        assertIgnoredAfter(32 + 3, new byte[] {(byte) 0xFF});
+    }
+
+    @Test
+    public void corruptExpiryIsIgnored() throws IOException {
+        // A later expiry must not make an entry live longer.
+        assertIgnoredAfter(24, ByteBuffer.allocate(8).putLong(Long.MAX_VALUE).array());
+    }
+
+    @Test
+    public void corruptLengthIsIgnored() throws IOException {
+        assertIgnoredAfter(4, ByteBuffer.allocate(4).putInt(Integer.MAX_VALUE).array());
+        assertIgnoredAfter(8, ByteBuffer.allocate(4).putInt(-1).array());
+    }
+}
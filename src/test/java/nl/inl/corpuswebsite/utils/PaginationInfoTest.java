@@ -0,0 +1,81 @@
+package nl.inl.corpuswebsite.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Optional;
+
+import org.junit.jupiter.api.Test;
+
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+
+public class PaginationInfoTest {
+
+    /** Without metadata the document length is unknown, and treated as unbounded. */
+    private static PaginationInfo unknownLength(Integer pageSize, Integer start, Integer end, Integer hitStart) {
+        return new PaginationInfo(Optional.ofNullable(pageSize), Result.empty(), Optional.ofNullable(start), Optional.ofNullable(end),
+                Optional.ofNullable(hitStart), Optional.empty());
+    }
+
+    private static PaginationInfo withLength(int length, Integer pageSize, Integer start, Integer end) throws SaxonApiException {
+        XdmNode metadata = XslTransformer.parse("<blacklabResponse><docInfo><lengthInTokens>" + length + "</lengthInTokens></docInfo></blacklabResponse>");
+        return new PaginationInfo(Optional.ofNullable(pageSize), Result.success(metadata), Optional.ofNullable(start), Optional.ofNullable(end),
+                Optional.empty(), Optional.empty());
+    }
+
+    @Test
+    public void disabledPaginationShowsTheWholeDocument() {
+        PaginationInfo p = unknownLength(null, 100, 200, 150);
+        assertEquals(0, p.clientPageStart);
+        assertEquals(Integer.MAX_VALUE, p.clientPageEnd);
+        assertEquals(Optional.empty(), p.blacklabPageStart);
+        assertEquals(Optional.empty(), p.blacklabPageEnd);
+    }
+
+    @Test
+    public void defaultsToTheFirstPage() {
+        PaginationInfo p = unknownLength(100, null, null, null);
+        assertEquals(0, p.clientPageStart);
+        assertEquals(100, p.clientPageEnd);
+        assertEquals(Optional.empty(), p.blacklabPageStart);
+        assertEquals(Optional.of(100), p.blacklabPageEnd);
+    }
+
+    @Test
+    public void hitStartSelectsThePageContainingTheHit() {
+        PaginationInfo p = unknownLength(100, 0, 10, 250);
+        assertEquals(200, p.clientPageStart);
+        assertEquals(300, p.clientPageEnd);
+        assertEquals(Optional.of(200), p.blacklabPageStart);
+        assertEquals(Optional.of(300), p.blacklabPageEnd);
+    }
+
+    @Test
+    public void invalidRangesAreCorrected() {
+        PaginationInfo negative = unknownLength(100, -5, 50, null);
+        assertEquals(0, negative.clientPageStart);
+        assertEquals(50, negative.clientPageEnd);
+
+        PaginationInfo reversed = unknownLength(100, 300, 200, null);
+        assertEquals(300, reversed.clientPageStart);
+        assertEquals(400, reversed.clientPageEnd);
+
+        PaginationInfo tooLarge = unknownLength(100, 300, 1000, null);
+        assertEquals(300, tooLarge.clientPageStart);
+        assertEquals(400, tooLarge.clientPageEnd);
+    }
+
+    @Test
+    public void pageIsClampedToTheDocument() throws SaxonApiException {
+        PaginationInfo last = withLength(250, 100, 200, 300);
+        assertEquals(250, last.documentLength);
+        assertEquals(200, last.clientPageStart);
+        assertEquals(250, last.clientPageEnd);
+        assertEquals(Optional.of(200), last.blacklabPageStart);
+        assertEquals(Optional.empty(), last.blacklabPageEnd); // touches the end of the document
+
+        PaginationInfo beyond = withLength(250, 100, 400, 500);
+        assertEquals(0, beyond.clientPageStart);
+        assertEquals(100, beyond.clientPageEnd);
+    }
+}
@@ -0,0 +1,99 @@
+package nl.inl.corpuswebsite.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+public class SingleFlightTest {
+
+    /** Wait until a call has joined the one in progress. */
+    private static void awaitCollapsed(SingleFlight<?, ?> flight, long count) throws InterruptedException {
+        long until = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while ((long) flight.getMetrics().get("collapsed") < count) {
+            if (System.nanoTime() > until) throw new AssertionError("The second call never joined the first");
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void concurrentCallsShareTheWork() throws Exception {
+        SingleFlight<String, Object> flight = new SingleFlight<>();
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Object value = new Object();
+
+        CompletableFuture<Object> first = CompletableFuture.supplyAsync(() -> flight.run("key", () -> {
+            calls.incrementAndGet();
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return value;
+        }));
+        started.await();
+        CompletableFuture<Object> second = CompletableFuture.supplyAsync(() -> flight.run("key", () -> {
+            calls.incrementAndGet();
+            return new Object();
+        }));
+        awaitCollapsed(flight, 1);
+        release.countDown();
+
+        assertSame(value, first.get(10, TimeUnit.SECONDS));
+        assertSame(value, second.get(10, TimeUnit.SECONDS));
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void keyIsForgottenAfterwards() {
+        SingleFlight<String, Integer> flight = new SingleFlight<>();
+        AtomicInteger calls = new AtomicInteger();
+        assertEquals(1, (int) flight.run("key", calls::incrementAndGet));
+        assertEquals(2, (int) flight.run("key", calls::incrementAndGet));
+        assertEquals(0, (int) flight.getMetrics().get("inFlight"));
+    }
+
+    @Test
+    public void exceptionsReachAllCallers() throws Exception {
+        SingleFlight<String, Object> flight = new SingleFlight<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        CompletableFuture<Object> first = CompletableFuture.supplyAsync(() -> flight.run("key", () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            throw new IllegalArgumentException("failed");
+        }));
+        started.await();
+        CompletableFuture<Throwable> second = CompletableFuture.supplyAsync(() ->
+                assertThrows(IllegalArgumentException.class, () -> flight.run("key", Object::new)));
+        awaitCollapsed(flight, 1);
+        release.countDown();
+
+        assertEquals("failed", second.get(10, TimeUnit.SECONDS).getMessage());
+        Throwable e = assertThrows(Exception.class, () -> first.get(10, TimeUnit.SECONDS));
+        assertEquals(IllegalArgumentException.class, e.getCause().getClass());
+        // The failure is not remembered.
+        assertEquals("next", flight.run("key", () -> "next"));
+    }
+
+    @Test
+    public void differentKeysDontWait() {
+        SingleFlight<String, String> flight = new SingleFlight<>();
+        String inner = flight.run("a", () -> flight.run("b", () -> "b"));
+        assertEquals("b", inner);
+    }
+}